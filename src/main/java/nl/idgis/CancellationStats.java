@@ -0,0 +1,52 @@
+package nl.idgis;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Component;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Counts the queries that were stopped before they completed, by cause and by the stage in which they stopped.
+ */
+@Component
+public class CancellationStats {
+	
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong disconnected = new AtomicLong();
+	private final Map<String, AtomicLong> stages = new ConcurrentHashMap<>();
+	
+	/**
+	 * Records a query that stopped.
+	 *
+	 * @param e - The exception with which the query stopped
+	 */
+	public void record(QueryCancelledException e) {
+		if(e.isTimedOut()) {
+			timedOut.incrementAndGet();
+		} else {
+			disconnected.incrementAndGet();
+		}
+		stages.computeIfAbsent(e.getStage(), stage -> new AtomicLong()).incrementAndGet();
+	}
+	
+	/**
+	 * @return The counters as a JsonObject
+	 */
+	public JsonObject toJson() {
+		JsonObject obj = new JsonObject();
+		obj.addProperty("timedOut", timedOut.get());
+		obj.addProperty("disconnected", disconnected.get());
+		
+		JsonObject byStage = new JsonObject();
+		for(Map.Entry<String, AtomicLong> stage : new TreeMap<>(stages).entrySet()) {
+			byStage.addProperty(stage.getKey(), stage.getValue().get());
+		}
+		obj.add("stages", byStage);
+		
+		return obj;
+	}
+}
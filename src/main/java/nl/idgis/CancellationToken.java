@@ -0,0 +1,127 @@
+package nl.idgis;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The deadline of a request and the means to cancel its work. The statements of the request are registered so
+ * they get the remaining time as query timeout and are cancelled in the database when the client goes away.
+ * The encoding checks the token between chunks, so cancelled work stops at the next chunk.
+ */
+public class CancellationToken {
+	
+	private static final Logger log = LoggerFactory.getLogger(CancellationToken.class);
+	
+	/**
+	 * A token without deadline that is never cancelled, for work that isn't bound to a request.
+	 */
+	public static final CancellationToken NONE = new CancellationToken(0);
+	
+	private final long deadline;
+	private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+	private volatile boolean cancelled;
+	private volatile boolean completed;
+	
+	/**
+	 * @param timeout - The time in milliseconds the request may take, 0 for no deadline
+	 */
+	public CancellationToken(long timeout) {
+		deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Registers a statement before it is executed. The statement gets the remaining time, rounded up to whole
+	 * seconds, as its query timeout. Unregister the statement when it is done, before it is closed.
+	 *
+	 * @param statement - The statement to cancel with the request
+	 * @param stage - The stage in which the statement is executed, e.g. execute or ids
+	 * @throws QueryCancelledException If the request is already cancelled or past its deadline
+	 * @throws SQLException If the query timeout can't be set
+	 */
+	public void register(Statement statement, String stage) throws SQLException {
+		check(stage);
+		if(deadline != Long.MAX_VALUE) {
+			long remaining = deadline - System.currentTimeMillis();
+			statement.setQueryTimeout((int) Math.max(1, (remaining + 999) / 1000));
+		}
+		
+		statements.add(statement);
+		// The request may have been cancelled while the statement was added
+		if(cancelled) {
+			statement.cancel();
+		}
+	}
+	
+	/**
+	 * Unregisters a statement that is done, so the token only keeps the statements that are executing.
+	 */
+	public void unregister(Statement statement) {
+		statements.remove(statement);
+	}
+	
+	/**
+	 * Cancels the request and the statements that are executing for it.
+	 *
+	 * @return False if the request was already completed, so there was nothing to cancel
+	 */
+	public boolean cancel() {
+		if(completed || cancelled) {
+			return false;
+		}
+		
+		cancelled = true;
+		for(Statement statement : statements) {
+			try {
+				if(!statement.isClosed()) {
+					statement.cancel();
+				}
+			} catch(SQLException e) {
+				log.warn("Could not cancel statement: " + e.getMessage());
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Marks the request as completed, after which it is no longer cancelled.
+	 */
+	public void complete() {
+		completed = true;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	public boolean isExpired() {
+		return System.currentTimeMillis() > deadline;
+	}
+	
+	/**
+	 * @return The number of registered statements
+	 */
+	public int getStatementCount() {
+		return statements.size();
+	}
+	
+	/**
+	 * Stops the work of the request if it was cancelled or is past its deadline.
+	 *
+	 * @param stage - The stage that is stopped
+	 * @throws QueryCancelledException If the request was cancelled or is past its deadline
+	 */
+	public void check(String stage) {
+		if(isExpired()) {
+			throw new QueryCancelledException("The query took too long", stage, true);
+		}
+		if(cancelled) {
+			throw new QueryCancelledException("The query was cancelled", stage, false);
+		}
+	}
+}
@@ -1,7 +1,13 @@
 package nl.idgis;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
@@ -18,4 +24,50 @@ public class CustomConfiguration {
 			}
 		};
 	}
+	
+	/**
+	 * The timeout of the async requests that don't set their own. The layer query sets the timeout of its 
+	 * DeferredResult, so this applies to the streamed responses: the exports and the FeatureServer query. An export 
+	 * of a large layer takes much longer than the default timeout of the container (0 = no timeout).
+	 */
+	@Bean
+	public WebMvcConfigurer asyncConfigurer(@Value("${query.export.timeout-ms:3600000}") long exportTimeout) {
+		return new WebMvcConfigurerAdapter() {
+			@Override
+			public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+				configurer.setDefaultTimeout(exportTimeout);
+			}
+		};
+	}
+	
+	/**
+	 * Thread pool on which the per-layer queries of a FeatureServer query run in parallel. Keep the size 
+	 * below the maximum number of database connections.
+	 */
+	@Bean(destroyMethod="shutdown")
+	public ExecutorService layerQueryExecutor(@Value("${query.parallel.threads:8}") int threads) {
+		return Executors.newFixedThreadPool(threads);
+	}
+	
+	/**
+	 * Thread pool on which the layer queries run, so the request threads are released while the database works. 
+	 * The admission control limits the number of queries that run at once, the size only has to exceed the 
+	 * number of queries it admits and lets wait.
+	 */
+	@Bean(destroyMethod="shutdown")
+	public ExecutorService queryRequestExecutor(@Value("${query.request.threads:100}") int threads) {
+		return Executors.newFixedThreadPool(threads);
+	}
+	
+	/**
+	 * Pool on which large query results are encoded in parallel. It is separate from the common pool so the 
+	 * encoding of one large response can be limited without affecting the rest of the application.
+	 */
+	@Bean(destroyMethod="shutdown")
+	public ForkJoinPool featureEncodingPool(@Value("${query.encoding.parallelism:0}") int parallelism) {
+		if(parallelism <= 0) {
+			parallelism = Runtime.getRuntime().availableProcessors();
+		}
+		return new ForkJoinPool(parallelism);
+	}
 }
@@ -0,0 +1,189 @@
+package nl.idgis;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Listens for change notifications of the tables of the layers on a dedicated database connection. The
+ * publisher, or the trigger in sql/data-change-trigger.sql, notifies the channel data_changed_&lt;table name&gt;
+ * after a change. The connection is reopened after it is lost, the tables are then treated as changed as
+ * notifications may have been missed.
+ */
+@Component
+public class DataChangeListener {
+	
+	private static final Logger log = LoggerFactory.getLogger(DataChangeListener.class);
+	
+	private static final String CHANNEL_PREFIX = "data_changed_";
+	
+	private final boolean enabled;
+	private final String url;
+	private final String username;
+	private final String password;
+	private final long pollInterval;
+	private final long reconnectDelay;
+	
+	/**
+	 * The tables to listen to by channel, and the last change per table.
+	 */
+	private final Map<String, String> tables = new ConcurrentHashMap<>();
+	private final Map<String, Long> lastChanges = new ConcurrentHashMap<>();
+	private final Set<String> subscribed = ConcurrentHashMap.newKeySet();
+	
+	private volatile boolean connected;
+	private volatile boolean running;
+	private Thread thread;
+	
+	public DataChangeListener(
+			@Value("${data-change.listen:false}") boolean enabled,
+			@Value("${spring.datasource.url:}") String url,
+			@Value("${spring.datasource.username:}") String username,
+			@Value("${spring.datasource.password:}") String password,
+			@Value("${data-change.poll-interval-ms:500}") long pollInterval,
+			@Value("${data-change.reconnect-delay-ms:5000}") long reconnectDelay) {
+		this.enabled = enabled && !"".equals(url);
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.pollInterval = pollInterval;
+		this.reconnectDelay = reconnectDelay;
+	}
+	
+	@PostConstruct
+	public void start() {
+		if(!enabled) {
+			return;
+		}
+		
+		running = true;
+		thread = new Thread(this::run, "data-change-listener");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		running = false;
+		if(thread != null) {
+			thread.interrupt();
+		}
+	}
+	
+	/**
+	 * Checks whether changes of a table are received. The table is subscribed to on the first call.
+	 *
+	 * @param dbUrl - The table name
+	 * @return True if the notifications of the table are received
+	 */
+	public boolean isListening(String dbUrl) {
+		if(!enabled) {
+			return false;
+		}
+		
+		String channel = getChannel(dbUrl);
+		tables.putIfAbsent(channel, dbUrl);
+		return connected && subscribed.contains(channel);
+	}
+	
+	/**
+	 * @param dbUrl - The table name
+	 * @return The time of the last notified change of the table, or 0 if there was none
+	 */
+	public long getLastChange(String dbUrl) {
+		Long lastChange = lastChanges.get(dbUrl);
+		return lastChange == null ? 0 : lastChange;
+	}
+	
+	private void run() {
+		while(running) {
+			try(Connection conn = DriverManager.getConnection(url, username, password)) {
+				PGConnection pgConn = conn.unwrap(PGConnection.class);
+				connected = true;
+				log.info("Listening for data changes");
+				
+				while(running) {
+					subscribe(conn);
+					
+					// The driver only reads notifications while executing a statement
+					try(Statement stmt = conn.createStatement()) {
+						stmt.execute("SELECT 1");
+					}
+					
+					PGNotification[] notifications = pgConn.getNotifications();
+					if(notifications != null) {
+						for(PGNotification notification : notifications) {
+							changed(notification.getName());
+						}
+					}
+					
+					Thread.sleep(pollInterval);
+				}
+			} catch(SQLException e) {
+				log.warn("Lost the connection for data changes: " + e.getMessage());
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				connected = false;
+				subscribed.clear();
+			}
+			
+			// Changes may have been missed while the connection was lost
+			for(String channel : tables.keySet()) {
+				changed(channel);
+			}
+			
+			try {
+				Thread.sleep(reconnectDelay);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	private void subscribe(Connection conn) throws SQLException {
+		for(String channel : tables.keySet()) {
+			if(!subscribed.contains(channel)) {
+				try(Statement stmt = conn.createStatement()) {
+					stmt.execute("LISTEN \"" + channel.replace("\"", "\"\"") + "\"");
+				}
+				
+				// Changes before the subscription were not received
+				changed(channel);
+				subscribed.add(channel);
+			}
+		}
+	}
+	
+	private void changed(String channel) {
+		String dbUrl = tables.get(channel);
+		if(dbUrl != null) {
+			log.debug("Data of {} changed", dbUrl);
+			lastChanges.put(dbUrl, System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * The channel is named after the table without schema and quotes, the name the trigger gets in TG_TABLE_NAME.
+	 */
+	private static String getChannel(String dbUrl) {
+		String table = dbUrl.substring(dbUrl.lastIndexOf('.') + 1).replace("\"", "");
+		return CHANNEL_PREFIX + table;
+	}
+}
@@ -0,0 +1,241 @@
+package nl.idgis;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+@Component
+public class DataVersionHandler {
+	
+	private static final Logger log = LoggerFactory.getLogger(DataVersionHandler.class);
+	
+	/**
+	 * The oid and relfilenode change when the publisher recreates, truncates or rewrites the table, the
+	 * statistics count every inserted, updated and deleted row. With replicas the WAL position of the primary is
+	 * selected as well.
+	 */
+	private static final String VERSION_QUERY = "SELECT c.oid || '-' || c.relfilenode || '-' "
+			+ "|| COALESCE(s.n_tup_ins + s.n_tup_upd + s.n_tup_del, 0)%s "
+			+ "FROM pg_class c LEFT JOIN pg_stat_user_tables s ON s.relid = c.oid "
+			+ "WHERE c.oid = ?::regclass";
+	
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+	
+	@Autowired
+	private ReplicaRouter replicaRouter;
+	
+	@Autowired
+	private DataChangeListener changeListener;
+	
+	@Value("${query.data-version.ttl-ms:1000}")
+	private long ttl;
+	
+	@Value("${query.data-version.listen-ttl-ms:300000}")
+	private long listenTtl;
+	
+	@Value("${query.data-version.settle-ms:2000}")
+	private long settle;
+	
+	@Value("${query.data-version.hard-ttl-ms:60000}")
+	private long hardTtl;
+	
+	@Value("${query.data-version.stale-if-error-ms:300000}")
+	private long staleIfError;
+	
+	@Value("${query.data-version.retry-ms:5000}")
+	private long retry;
+	
+	private final Map<String, DataVersion> versions = new ConcurrentHashMap<>();
+	private final Map<String, Long> failures = new ConcurrentHashMap<>();
+	private final Map<String, CompletableFuture<String>> lookups = new ConcurrentHashMap<>();
+	private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+	private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+	
+	@PreDestroy
+	public void shutdown() {
+		refreshExecutor.shutdownNow();
+	}
+	
+	/**
+	 * Gets the version of the data in a table. The version is looked up at most once per ttl. Past the ttl the 
+	 * known version is still used while a single lookup runs in the background, so the cached results of the
+	 * version are served without waiting for the database. Only past the hard ttl or after a change notification 
+	 * the version is looked up before it is returned. While change notifications of the table are received the 
+	 * version is kept for the listen ttl instead. The statistics are updated shortly after the change, so until 
+	 * settle has passed the short ttl is used. After a failed lookup the table is not looked up again for the retry
+	 * interval, so requests don't wait for a failing database one by one.
+	 *
+	 * @param dbUrl - The table name
+	 * @return The data version or null if it is unknown
+	 */
+	public String getDataVersion(String dbUrl) {
+		long now = System.currentTimeMillis();
+		DataVersion version = versions.get(dbUrl);
+		if(version != null) {
+			long age = now - version.fetched;
+			long softTtl = getTtl(dbUrl, version);
+			if(age < softTtl) {
+				return version.value;
+			}
+			if(softTtl > 0 && age < Math.max(hardTtl, softTtl)) {
+				refresh(dbUrl);
+				return version.value;
+			}
+		}
+		
+		return lookup(dbUrl, version);
+	}
+	
+	/**
+	 * Looks up the version before it is returned. Concurrent requests for the same table wait for a single lookup.
+	 */
+	private String lookup(String dbUrl, DataVersion version) {
+		long now = System.currentTimeMillis();
+		if(isFailing(dbUrl, now)) {
+			return getStale(version, now);
+		}
+		
+		CompletableFuture<String> future = new CompletableFuture<>();
+		CompletableFuture<String> existing = lookups.putIfAbsent(dbUrl, future);
+		if(existing != null) {
+			return join(existing);
+		}
+		
+		try {
+			String value = fetch(dbUrl, version);
+			future.complete(value);
+			return value;
+		} catch(RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			lookups.remove(dbUrl, future);
+		}
+	}
+	
+	private static String join(CompletableFuture<String> future) {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	/**
+	 * @return Whether the last lookup of the table failed less than the retry interval ago
+	 */
+	private boolean isFailing(String dbUrl, long now) {
+		Long failed = failures.get(dbUrl);
+		return failed != null && now - failed < retry;
+	}
+	
+	/**
+	 * Looks up the version in the background, unless a lookup of the table is already running or the last lookup 
+	 * failed within the retry interval.
+	 */
+	private void refresh(String dbUrl) {
+		if(isFailing(dbUrl, System.currentTimeMillis())) {
+			return;
+		}
+		
+		if(refreshing.add(dbUrl)) {
+			try {
+				refreshExecutor.execute(() -> {
+					try {
+						fetch(dbUrl, versions.get(dbUrl));
+					} finally {
+						refreshing.remove(dbUrl);
+					}
+				});
+			} catch(RuntimeException e) {
+				refreshing.remove(dbUrl);
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Looks up the version. The statistics are only kept on the primary, so the version is read there. When the 
+	 * version changed the replicas are only used once they have replayed the WAL position of the primary at that 
+	 * time, so the results of the version are read from the same data. If the lookup fails the last known version is used for 
+	 * stale-if-error after it was looked up, so the cached results are served while the database is failing. The 
+	 * time of the failure is kept for the retry interval.
+	 *
+	 * @param version - The last known version, or null
+	 * @return The version, or null if it is unknown
+	 */
+	private String fetch(String dbUrl, DataVersion version) {
+		long now = System.currentTimeMillis();
+		try {
+			String lsnFunction = replicaRouter.getPrimaryLsnFunction();
+			String value;
+			if(lsnFunction == null) {
+				value = jdbcTemplate.queryForObject(String.format(VERSION_QUERY, ""), String.class, dbUrl);
+			} else {
+				String[] row = jdbcTemplate.queryForObject(String.format(VERSION_QUERY, ", " + lsnFunction + "()::text"), 
+						(rs, rowNum) -> new String[]{ rs.getString(1), rs.getString(2) }, dbUrl);
+				value = row[0];
+				// The position of the primary moves on with every write, so it is only required for a new version
+				if(version == null || !value.equals(version.value)) {
+					replicaRouter.requireLsn(row[1]);
+				}
+			}
+			versions.put(dbUrl, new DataVersion(value, now));
+			failures.remove(dbUrl);
+			return value;
+		} catch(DataAccessException e) {
+			log.error(e.getMessage(), e);
+			failures.put(dbUrl, now);
+			return getStale(version, now);
+		}
+	}
+	
+	/**
+	 * @return The last known version if it was looked up less than stale-if-error ago, otherwise null
+	 */
+	private String getStale(DataVersion version, long now) {
+		return version == null || now - version.fetched >= staleIfError ? null : version.value;
+	}
+	
+	private long getTtl(String dbUrl, DataVersion version) {
+		boolean listening = changeListener.isListening(dbUrl);
+		long lastChange = changeListener.getLastChange(dbUrl);
+		if(version.fetched <= lastChange) {
+			return 0;
+		}
+		
+		return listening && version.fetched - lastChange > settle ? listenTtl : ttl;
+	}
+	
+	private static class DataVersion {
+		
+		private final String value;
+		private final long fetched;
+		
+		DataVersion(String value, long fetched) {
+			this.value = value;
+			this.fetched = fetched;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package nl.idgis;
+
+/**
+ * Thrown when the work of a request stops because the client went away or the deadline passed.
+ */
+public class QueryCancelledException extends RuntimeException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final String stage;
+	private final boolean timedOut;
+	
+	/**
+	 * @param message - The error message for the client
+	 * @param stage - The stage in which the work stopped, e.g. execute or encode
+	 * @param timedOut - True if the deadline passed, false if the request was cancelled
+	 */
+	public QueryCancelledException(String message, String stage, boolean timedOut) {
+		super(message);
+		this.stage = stage;
+		this.timedOut = timedOut;
+	}
+	
+	public String getStage() {
+		return stage;
+	}
+	
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+}
@@ -5,77 +5,298 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.PostConstruct;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Component;
 
+import nl.idgis.query.Projection;
+import nl.idgis.query.SpatialFilter;
+import nl.idgis.query.SpatialReferences;
+
 @Component
 public class QueryHandler {
 
 	private static final Logger log = LoggerFactory.getLogger(QueryHandler.class);
 	
 	@Autowired
-	private JdbcTemplate jdbcTemplate;
+	private ReplicaRouter replicaRouter;
+	
+	@Value("${query.timeout-ms:30000}")
+	private long queryTimeout;
+	
+	private JdbcTemplate readTemplate;
+	
+	@PostConstruct
+	public void init() {
+		readTemplate = new JdbcTemplate(replicaRouter.getDataSource());
+		if(queryTimeout > 0) {
+			readTemplate.setQueryTimeout((int) Math.max(1, (queryTimeout + 999) / 1000));
+		}
+	}
 	
 	/**
 	 * Queries the database to get all data speciefied by the field array and stores them in Lists in a HashMap.
 	 * 
 	 * @param dbUrl - The table name
-	 * @param fields - All column names to get from the database
-	 * @param extent - The extent in [xmin, ymin, xmax, ymax]
-	 * @param outSR - The spatialRel for output
+	 * @param fields - All column names of the layer, used to parse the where clause
+	 * @param filter - The spatial filter
+	 * @param objectIds - The OBJECTIDs of the features to get, or null for all features
+	 * @param projection - The columns to get, the geometry is in the geoJsons column
+	 * @param outSR - The spatial reference of the returned geometries
 	 * @param resultOffset - The OFFSET
 	 * @param resultRecordCount - The LIMIT
-	 * @return All data specified in the fields array.
+	 * @param trace - The trace in which the query and its timings are recorded
+	 * @return The data per column of the projection
+	 * @throws QueryCancelledException If the request of the trace is cancelled or past its deadline
+	 * @throws DataAccessException If the query fails, e.g. because of an invalid where clause
 	 */
-	public Map<String, List<String>> getDataFromTable(int layerId, String dbUrl, String[] fields, String where, double[] extent, 
-			String outFields, int outSR, int resultOffset, int resultRecordCount, String maxAllowableOffset) {
-		log.debug("Connecting to the database...");
+	public Map<String, List<String>> getDataFromTable(int layerId, String dbUrl, String[] fields, String where, SpatialFilter filter, 
+			Integer[] objectIds, Projection projection, int outSR, int resultOffset, int resultRecordCount, String maxAllowableOffset, 
+			QueryTrace trace) {
 		Map<String, List<String>> data = new HashMap<>();
 		List<String> list = null;
 		
-		//String query = createQueryString(maxAllowableOffset, getOutFields(layerId, outFields), dbUrl, getWhereExtent(fields, where, extent, outSR), resultOffset, resultRecordCount, extent, outSR, layerId);
-		String query = createQueryString(maxAllowableOffset, outFields, dbUrl, getWhereExtent(fields, where, extent, outSR), resultOffset, resultRecordCount, extent, outSR, layerId);
+		List<Object> params = new ArrayList<>();
+		String query = createQueryString(maxAllowableOffset, projection, dbUrl, fields, where, resultOffset, resultRecordCount, filter, 
+				objectIds, outSR, "ST_AsGeoJson", params);
+		List<String> columns = new ArrayList<>(Arrays.asList(projection.getColumns()));
+		if(projection.hasGeometry()) {
+			columns.add(Projection.GEOMETRY_COLUMN);
+		}
+		if(projection.isClipped()) {
+			columns.add(Projection.CLIPPED_COLUMN);
+		}
+		trace.setQuery(query, params);
 		
-		log.debug("Query: " + query);
-		log.debug(jdbcTemplate.getDataSource().toString());
+		if(trace.isSampled()) {
+			log.debug("Query: " + query + " " + params);
+		}
 		
-		try(Connection conn = jdbcTemplate.getDataSource().getConnection();
+		// All pages of a query are read from the same replica
+		String pinKey = layerId + "|" + where + "|" + filter + "|" + Arrays.toString(objectIds) + "|" + projection + "|" + outSR + "|" 
+				+ maxAllowableOffset;
+		try(Connection conn = replicaRouter.getConnection(pinKey);
 			PreparedStatement statement = conn.prepareStatement(query, ResultSet.TYPE_SCROLL_INSENSITIVE,
 																	   ResultSet.CONCUR_READ_ONLY)) {
 			
-			log.debug("Connected to the database, getting data...");
-			ResultSet rs = statement.executeQuery();
-			
-			// Check for number of rows
-			int numRows = 0;
-			if(rs.last()) {
-				numRows = rs.getRow();
-				rs.beforeFirst();
+			trace.getCancellation().register(statement, "execute");
+			try {
+				setParameters(statement, params);
+				ResultSet rs = statement.executeQuery();
+				trace.stage("execute");
+				
+				// Check for number of rows
+				int numRows = 0;
+				if(rs.last()) {
+					numRows = rs.getRow();
+					rs.beforeFirst();
+				}
+				
+				for(String column : columns) {
+					trace.getCancellation().check("fetch");
+					rs.beforeFirst();
+					list = new ArrayList<>(numRows);
+					while(rs.next()) {
+						list.add(rs.getString(column));
+					}
+					data.put(column, list);
+				}
+				
+				trace.setRows(numRows);
+				trace.stage("fetch");
+				if(trace.isSampled()) {
+					log.debug("Got " + numRows + " rows from the database...");
+				}
+			} finally {
+				trace.getCancellation().unregister(statement);
 			}
+		} catch (SQLException e) {
+			// A cancelled statement fails, which is not an error of the query
+			trace.getCancellation().check("execute");
+			throw readTemplate.getExceptionTranslator().translate("Query", query, e);
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * Queries the database for all rows matching the filter and hands them to the rowHandler one by one. The rows 
+	 * are read through a server-side cursor in batches of fetchSize, so the memory use doesn't depend on the number 
+	 * of rows. The geometry is returned in the geoJsons column, encoded with the geometryFunction. Every feature is 
+	 * a single row with its complete geometry. The query is stopped at the deadline of the cancellation of the trace.
+	 * 
+	 * @param fields - All column names of the layer, used to parse the where clause
+	 * @param projection - The columns to get
+	 * @param geometryFunction - The PostGIS function to encode the geometries with, e.g. ST_AsGeoJson or ST_AsText
+	 * @param fetchSize - The number of rows to fetch at once
+	 * @param rowHandler - Processes each row
+	 * @param trace - The trace in which the query and its timings are recorded
+	 * @return The number of rows
+	 * @throws SQLException If the query fails, possibly after some rows were handled
+	 * @throws QueryCancelledException If the export is cancelled or past its deadline
+	 */
+	public int streamDataFromTable(String dbUrl, String[] fields, String where, SpatialFilter filter, Projection projection, int outSR, 
+			String geometryFunction, int fetchSize, RowCallbackHandler rowHandler, QueryTrace trace) throws SQLException {
+		List<Object> params = new ArrayList<>();
+		String query = createExportQueryString(projection, dbUrl, fields, where, filter, outSR, geometryFunction, params);
+		trace.setQuery(query, params);
+		
+		if(trace.isSampled()) {
+			log.debug("Export query: " + query + " " + params);
+		}
+		
+		try(Connection conn = replicaRouter.getConnection(null)) {
+			// The driver only uses a cursor within a transaction
+			boolean autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
 			
-			for(int i = 0; i < fields.length; i++) {
-				rs.beforeFirst();
-				list = new ArrayList<>(numRows);
-				while(rs.next()) {
-					list.add(rs.getString(fields[i]));
+			int numRows = 0;
+			try(PreparedStatement statement = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+				statement.setFetchSize(fetchSize);
+				trace.getCancellation().register(statement, "export");
+				try {
+					setParameters(statement, params);
+					try(ResultSet rs = statement.executeQuery()) {
+						trace.stage("execute");
+						while(rs.next()) {
+							rowHandler.processRow(rs);
+							// The query timeout only covers the execution, the deadline is checked once per fetch
+							if(++numRows % fetchSize == 0) {
+								trace.getCancellation().check("stream");
+							}
+						}
+					}
+				} finally {
+					trace.getCancellation().unregister(statement);
+				}
+			} catch(SQLException | RuntimeException e) {
+				// A failing rollback must not hide why the export failed
+				try {
+					conn.rollback();
+					conn.setAutoCommit(autoCommit);
+				} catch(SQLException rollbackFailure) {
+					e.addSuppressed(rollbackFailure);
 				}
-				data.put(fields[i], list);
+				throw e;
 			}
 			
-			log.debug("Got the data from the database...");
+			conn.rollback();
+			conn.setAutoCommit(autoCommit);
 			
-		} catch (SQLException e) {
-			log.error(e.getMessage(), e);
+			trace.setRows(numRows);
+			trace.stage("stream");
+			return numRows;
+		}
+	}
+	
+	/**
+	 * Queries the database for the OBJECTIDs of the features matching the filters, ordered by OBJECTID.
+	 * 
+	 * @param fields - All column names of the layer, used to parse the where clause
+	 * @param filter - The spatial filter
+	 * @param objectIds - The OBJECTIDs to choose from, or null
+	 * @param resultOffset - The number of ids to skip
+	 * @param resultRecordCount - The maximum number of ids
+	 * @param trace - The trace in which the query and its timings are recorded
+	 * @return The OBJECTIDs
+	 * @throws QueryCancelledException If the request of the trace is cancelled or past its deadline
+	 * @throws DataAccessException If the query fails, e.g. because of an invalid where clause
+	 */
+	public List<Integer> getObjectIds(String dbUrl, String[] fields, String where, SpatialFilter filter, Integer[] objectIds, 
+			int resultOffset, int resultRecordCount, QueryTrace trace) {
+		List<Object> params = new ArrayList<>();
+		String query = "SELECT \"OBJECTID\" FROM " + dbUrl + getWhereExtent(fields, where, filter, objectIds, params) 
+				+ " ORDER BY \"OBJECTID\" OFFSET ? LIMIT ?";
+		params.add(resultOffset);
+		params.add(resultRecordCount);
+		trace.setQuery(query, params);
+		
+		if(trace.isSampled()) {
+			log.debug("Object id query: " + query + " " + params);
 		}
 		
-		return data;
+		List<Integer> ids = new ArrayList<>();
+		try(Connection conn = replicaRouter.getConnection(dbUrl + "|" + where + "|" + filter + "|" + Arrays.toString(objectIds));
+			PreparedStatement statement = conn.prepareStatement(query)) {
+			trace.getCancellation().register(statement, "ids");
+			try {
+				setParameters(statement, params);
+				try(ResultSet rs = statement.executeQuery()) {
+					while(rs.next()) {
+						ids.add(rs.getInt(1));
+					}
+				}
+				trace.stage("ids");
+			} finally {
+				trace.getCancellation().unregister(statement);
+			}
+		} catch(SQLException e) {
+			trace.getCancellation().check("ids");
+			throw readTemplate.getExceptionTranslator().translate("Object id query", query, e);
+		}
+		
+		return ids;
+	}
+	
+	/**
+	 * Queries the database for aggregated values. The statistics are grouped by the groupByFields and ordered 
+	 * by them, without groupByFields a single row is returned. The query is stopped after query.timeout-ms.
+	 * 
+	 * @param dbUrl - The table name
+	 * @param fields - All column names of the layer, used to parse the where clause
+	 * @param statistics - The aggregate expressions to select
+	 * @param groupByFields - The column names to group by
+	 * @param trace - The trace in which the query and its timings are recorded
+	 * @return A row per group with the group by columns and the statistics
+	 */
+	public List<Map<String, Object>> getStatisticsFromTable(String dbUrl, String[] fields, String where, SpatialFilter filter, 
+			List<String> statistics, String[] groupByFields, QueryTrace trace) {
+		StringBuilder groupBy = new StringBuilder();
+		for(String groupByField : groupByFields) {
+			if(groupBy.length() > 0) {
+				groupBy.append(", ");
+			}
+			groupBy.append("\"" + groupByField + "\"");
+		}
+		
+		StringBuilder builder = new StringBuilder();
+		builder.append("SELECT ");
+		builder.append(groupBy);
+		for(String statistic : statistics) {
+			if(builder.length() > "SELECT ".length()) {
+				builder.append(", ");
+			}
+			builder.append(statistic);
+		}
+		List<Object> params = new ArrayList<>();
+		builder.append(" FROM " + dbUrl);
+		builder.append(getWhereExtent(fields, where, filter, null, params));
+		if(groupBy.length() > 0) {
+			builder.append(" GROUP BY " + groupBy + " ORDER BY " + groupBy);
+		}
+		
+		String query = builder.toString();
+		trace.setQuery(query, params);
+		if(trace.isSampled()) {
+			log.debug("Statistics query: " + query + " " + params);
+		}
+		
+		List<Map<String, Object>> rows = readTemplate.queryForList(query, params.toArray());
+		trace.setRows(rows.size());
+		trace.stage("execute");
+		return rows;
 	}
 	
 	/**
@@ -107,62 +328,86 @@ public class QueryHandler {
 		
 		return builder.toString();
 	}*/
-	private String createQueryString(String maxAllowableOffset, String outFields, String dbUrl, String whereClause, 
-			int resultOffset, int resultRecordCount, double[] extent, int outSR, int layerId) {
+	
+	/**
+	 * Creates the query for the projection. The geometries are split into their parts, of which only the parts 
+	 * matching the spatial filter are returned. Without geometry only the attribute columns are read from the table.
+	 */
+	private String createQueryString(String maxAllowableOffset, Projection projection, String dbUrl, String[] fields, String where, 
+			int resultOffset, int resultRecordCount, SpatialFilter filter, Integer[] objectIds, int outSR, String geometryFunction, 
+			List<Object> params) {
 		StringBuilder builder = new StringBuilder();
-		builder.append("SELECT ST_AsGeoJson(");
-		
-		if(!"".equals(maxAllowableOffset)) {
-			builder.append("ST_SimplifyPreserveTopology(");
-		}
-		builder.append("single.the_geom");
-		if(!"".equals(maxAllowableOffset)) {
-			builder.append("," + Float.parseFloat(maxAllowableOffset) + ")");
-		}
-		builder.append(") AS geoJsons, ");
-		/*builder.append(getOutFields(layerId, outFields));
-		builder.append(" FROM (SELECT (ST_Dump(avw.\"SHAPE\")).geom AS the_geom, ");
-		builder.append(getOutFields(layerId, outFields));
-		builder.append(" FROM ");
-		builder.append(dbUrl + " as avw ");
-		builder.append(whereClause + ") AS single ");*/
-		builder.append(getFrom(layerId, dbUrl, outFields, whereClause));
-		if(extent.length == 0) {
-			builder.append("");
+		if(projection.hasGeometry()) {
+			builder.append(getGeometrySelect(maxAllowableOffset, projection, filter, outSR, geometryFunction, params));
+			builder.append(" FROM (SELECT (ST_Dump(avw.\"SHAPE\")).geom AS the_geom, " + projection.getSelectList("avw") + " FROM " 
+					+ dbUrl + " AS avw");
+			builder.append(getWhereExtent(fields, where, filter, objectIds, params) + ") AS single ");
+			String partPredicate = filter.getPartPredicate("single.the_geom", params);
+			if(partPredicate != null) {
+				builder.append("WHERE " + partPredicate);
+			}
 		} else {
-			builder.append("WHERE ST_Intersects(single.the_geom, ST_MakeEnvelope(");
-			builder.append(extent[0] + "," + extent[1] + "," + extent[2] + "," + extent[3] + "," + outSR + "))");
+			builder.append("SELECT " + projection.getSelectList(null) + " FROM " + dbUrl);
+			builder.append(getWhereExtent(fields, where, filter, objectIds, params));
+		}
+		builder.append(" OFFSET ?");
+		params.add(resultOffset);
+		// A negative resultRecordCount returns all rows
+		if(resultRecordCount >= 0) {
+			builder.append(" LIMIT ?");
+			params.add(resultRecordCount);
 		}
-		builder.append(" OFFSET " + resultOffset);
-		builder.append(" LIMIT " + resultRecordCount);
 		
 		return builder.toString();
 	}
 	
-	private String getFrom(int layerId, String dbUrl, String outFields, String whereClause) {
-		StringBuilder builder = new StringBuilder();
+	/**
+	 * Creates the query for an export. The features are exported as a whole, so the geometries are not split into 
+	 * their parts and the OBJECTID of every row is unique.
+	 */
+	private String createExportQueryString(Projection projection, String dbUrl, String[] fields, String where, SpatialFilter filter, 
+			int outSR, String geometryFunction, List<Object> params) {
+		int outSrid = SpatialReferences.getSrid(outSR);
 		
-		if("*".equals(outFields)) {
-			String avwOutFields;
-			if(layerId == 0) {
-				avwOutFields = "\"OBJECTID\", \"CD_VISIE\", \"VERWACHTIN\", \"OMSCHRIJVI\", \"ONDERZOEKS\"";
-			} else if (layerId == 1) {
-				avwOutFields = "\"OBJECTID\", \"OMS\", \"NR\"";
-			} else {
-				avwOutFields = "\"OBJECTID\", \"VESTNAAM\", \"STRAATNAAM\", \"HUISNR_TOE\", \"POSTCODE\", \"PLAATSNAAM\", \"GEMEENTENA\", \"TELEFOONNU\", \"HOOFDTYPE\", \"ONDWGEBI_1\", \"COROP_NAAM\", \"WGR_NAAM\"";
-			}
-			builder.append("* FROM (SELECT (ST_Dump(avw.\"SHAPE\")).geom AS the_geom, " + avwOutFields + " FROM " + dbUrl + " AS avw ");
-			builder.append(whereClause + ") AS single ");
-			
-			return builder.toString();
+		String geometry = "\"SHAPE\"";
+		if(outSrid != SpatialReferences.LAYER_SRID) {
+			geometry = "ST_Transform(" + geometry + ", ?)";
+			params.add(outSrid);
 		}
 		
-		String[] fields = outFields.split(",");
-		builder.append("\"" + fields[0] + "\"");
-		if(fields.length > 1) {
-			for(int i = 1; i < fields.length; i++) {
-				builder.append(",\"" + fields[i] + "\"");
-			}
+		return "SELECT " + geometryFunction + "(" + geometry + ") AS " + Projection.GEOMETRY_COLUMN + ", " + projection.getSelectList(null) 
+				+ " FROM " + dbUrl + getWhereExtent(fields, where, filter, null, params);
+	}
+	
+	/**
+	 * Selects the encoded geometry of the single parts as geoJsons and the attribute columns. A clipped geometry 
+	 * is clipped to the box of the filter first, the clipped column tells whether it extended beyond the box.
+	 */
+	private String getGeometrySelect(String maxAllowableOffset, Projection projection, SpatialFilter filter, int outSR, 
+			String geometryFunction, List<Object> params) {
+		int outSrid = SpatialReferences.getSrid(outSR);
+		
+		// The bind values are added in the order in which the functions are nested
+		String geometry = "single.the_geom";
+		if(projection.isClipped()) {
+			geometry = "ST_ClipByBox2D(" + geometry + ", Box2D(" + filter.getClipBox(projection.getClipPadding(), params) + "))";
+		}
+		if(outSrid != SpatialReferences.LAYER_SRID) {
+			geometry = "ST_Transform(" + geometry + ", ?)";
+			params.add(outSrid);
+		}
+		// maxAllowableOffset is in the units of outSR, so simplify after the transformation
+		if(!"".equals(maxAllowableOffset)) {
+			geometry = "ST_SimplifyPreserveTopology(" + geometry + ", ?)";
+			params.add(Double.parseDouble(maxAllowableOffset));
+		}
+		
+		StringBuilder builder = new StringBuilder();
+		builder.append("SELECT " + geometryFunction + "(" + geometry + ") AS " + Projection.GEOMETRY_COLUMN + ", ");
+		builder.append(projection.getSelectList("single"));
+		if(projection.isClipped()) {
+			builder.append(", NOT ST_CoveredBy(single.the_geom, " + filter.getClipBox(projection.getClipPadding(), params) + ") AS " 
+					+ Projection.CLIPPED_COLUMN);
 		}
 		
 		return builder.toString();
@@ -192,37 +437,49 @@ public class QueryHandler {
 	}*/
 	
 	/**
-	 * Gets the geometries within the given bounding box and extends with the where clause
+	 * Gets the geometries matching the spatial filter and object ids and extends with the where clause
 	 * 
 	 * @param where - The WHERE clause
-	 * @param extent - The bounding box in which the geometries to get
-	 * @param outSR - The spatialRel
+	 * @param filter - The spatial filter
+	 * @param objectIds - The OBJECTIDs to get, or null
+	 * @param params - The bind values, to which the values of the filter and the object ids are added
 	 * @return Returns the WHERE string
 	 */
-	private String getWhereExtent(String[] fields, String where, double[] extent, int outSR) {
-		if(extent.length == 0) {
-			return "";
+	private String getWhereExtent(String[] fields, String where, SpatialFilter filter, Integer[] objectIds, List<Object> params) {
+		List<String> conditions = new ArrayList<>();
+		if(!filter.isEmpty()) {
+			conditions.add(filter.getPredicate("\"SHAPE\"", params));
+		}
+		if(objectIds != null) {
+			conditions.add("\"OBJECTID\" = ANY(?)");
+			params.add(objectIds);
 		}
-		StringBuilder builder = new StringBuilder();
-		builder.append(" WHERE ST_Intersects(\"SHAPE\", ST_MakeEnvelope(" + extent[0] + ", " + extent[1] + ", "
-															   + extent[2] + ", " + extent[3] + ", " 
-															   + outSR + "))");
 		if(!"".equals(where)) {
-			builder.append(" AND ");
-			builder.append(parseWhere(fields, where));
+			conditions.add(conditions.isEmpty() ? parseWhere(fields, where) : "(" + parseWhere(fields, where) + ")");
 		}
 		
-		return builder.toString();
+		return conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+	}
+	
+	/**
+	 * Sets the bind values. An Integer[] is bound as an integer array, as used with = ANY(?).
+	 */
+	static void setParameters(PreparedStatement statement, List<Object> params) throws SQLException {
+		for(int i = 0; i < params.size(); i++) {
+			Object param = params.get(i);
+			if(param instanceof Integer[]) {
+				statement.setArray(i + 1, statement.getConnection().createArrayOf("int4", (Integer[]) param));
+			} else {
+				statement.setObject(i + 1, param);
+			}
+		}
 	}
 	
 	private String parseWhere(String[] fields, String where) {
-		log.debug("Where: " + where);
-		
 		for(String field : fields) {
 			where = where.replace(field, "\"" + field + "\"");
 		}
 		
-		log.debug("Return where: " + where);
 		return where;
 	}
 }
@@ -0,0 +1,94 @@
+package nl.idgis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the SQL, bind values, timings and row count of a single query. Sampled queries also write their
+ * debug logging, for other queries the debug strings are not built at all.
+ */
+public class QueryTrace {
+	
+	private final int layerId;
+	private final boolean sampled;
+	private final CancellationToken cancellation;
+	private final long started = System.currentTimeMillis();
+	private final long start = System.nanoTime();
+	private long lastStage = start;
+	
+	private String sql;
+	private List<Object> binds = Collections.emptyList();
+	private int rows;
+	private final Map<String, Long> stages = new LinkedHashMap<>();
+	
+	QueryTrace(int layerId, boolean sampled, CancellationToken cancellation) {
+		this.layerId = layerId;
+		this.sampled = sampled;
+		this.cancellation = cancellation;
+	}
+	
+	/**
+	 * Records the duration of a stage, which is the time since the previous stage ended.
+	 *
+	 * @param name - The name of the stage, e.g. execute, fetch or encode
+	 */
+	public void stage(String name) {
+		long now = System.nanoTime();
+		stages.put(name, (now - lastStage) / 1000000);
+		lastStage = now;
+	}
+	
+	public void setQuery(String sql, List<Object> binds) {
+		this.sql = sql;
+		this.binds = new ArrayList<>(binds);
+	}
+	
+	public void setRows(int rows) {
+		this.rows = rows;
+	}
+	
+	public boolean isSampled() {
+		return sampled;
+	}
+	
+	/**
+	 * @return The token with which the query is cancelled together with its request
+	 */
+	public CancellationToken getCancellation() {
+		return cancellation;
+	}
+	
+	public int getLayerId() {
+		return layerId;
+	}
+	
+	public long getStarted() {
+		return started;
+	}
+	
+	public String getSql() {
+		return sql;
+	}
+	
+	public List<Object> getBinds() {
+		return binds;
+	}
+	
+	public int getRows() {
+		return rows;
+	}
+	
+	public Map<String, Long> getStages() {
+		return stages;
+	}
+	
+	/**
+	 * @return The time in milliseconds from the creation of the trace until the last stage
+	 */
+	public long getDuration() {
+		return (lastStage - start) / 1000000;
+	}
+}
@@ -0,0 +1,326 @@
+package nl.idgis;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Routes the read queries over the read-only replicas in replicas.urls. A query goes to the healthy replica with
+ * the fewest queries in progress. Replicas that can't be reached, have no active WAL receiver or lag more than 
+ * replicas.max-lag-ms behind the primary are ejected until a health check succeeds again. A replica is also skipped
+ * until it has replayed the WAL position of the primary at which a data version was read, so the result of a
+ * version never comes from older data. Without healthy replicas the queries go to the primary datasource.
+ */
+@Component
+public class ReplicaRouter {
+	
+	private static final Logger log = LoggerFactory.getLogger(ReplicaRouter.class);
+	
+	/**
+	 * Selects whether the server is a standby, the replayed WAL position, whether the WAL receiver is running and
+	 * the lag. Users without pg_read_all_stats don't see the status of the WAL receiver, only that it runs.
+	 */
+	private static final String HEALTH_QUERY = "SELECT pg_is_in_recovery(), %2$s()::text, %3$s, "
+			+ "CASE WHEN %1$s() = %2$s() THEN 0 ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 END";
+	private static final String WAL_RECEIVER_QUERY = "EXISTS(SELECT 1 FROM pg_stat_wal_receiver "
+			+ "WHERE status IS NULL OR status = 'streaming')";
+	
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+	
+	private final List<Replica> replicas = new ArrayList<>();
+	private final ScheduledExecutorService healthCheckExecutor = Executors.newSingleThreadScheduledExecutor();
+	private final DataSource routingDataSource = new RoutingDataSource();
+	private final AtomicLong requiredLsn = new AtomicLong();
+	private final AtomicBoolean recheckScheduled = new AtomicBoolean();
+	private volatile String primaryLsnFunction;
+	
+	private final long healthCheckInterval;
+	private final long maxLag;
+	private final boolean pinPages;
+	
+	public ReplicaRouter(
+			@Value("${replicas.urls:}") String urls,
+			@Value("${replicas.username:${spring.datasource.username:}}") String username,
+			@Value("${replicas.password:${spring.datasource.password:}}") String password,
+			@Value("${replicas.health-check-interval-ms:5000}") long healthCheckInterval,
+			@Value("${replicas.max-lag-ms:10000}") long maxLag,
+			@Value("${replicas.pin-pages:false}") boolean pinPages) {
+		for(String url : urls.split(",")) {
+			if(!"".equals(url.trim())) {
+				addReplica(url.trim(), DataSourceBuilder.create()
+						.driverClassName("org.postgresql.Driver")
+						.url(url.trim())
+						.username(username)
+						.password(password)
+						.build());
+			}
+		}
+		
+		this.healthCheckInterval = healthCheckInterval;
+		this.maxLag = maxLag;
+		this.pinPages = pinPages;
+	}
+	
+	void addReplica(String url, DataSource dataSource) {
+		replicas.add(new Replica(url, dataSource));
+	}
+	
+	@PostConstruct
+	public void start() {
+		if(!replicas.isEmpty()) {
+			healthCheckExecutor.scheduleWithFixedDelay(this::checkHealth, 0, healthCheckInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		healthCheckExecutor.shutdownNow();
+	}
+	
+	/**
+	 * @return A datasource that gives a connection to the least busy replica for every query
+	 */
+	public DataSource getDataSource() {
+		return routingDataSource;
+	}
+	
+	/**
+	 * Gets the function that returns the current WAL position of the primary, which is read together with the data
+	 * versions. Without replicas the position is not needed.
+	 *
+	 * @return The function name, or null if there are no replicas
+	 * @throws DataAccessException If the version of the primary can't be read
+	 */
+	public String getPrimaryLsnFunction() {
+		if(replicas.isEmpty()) {
+			return null;
+		}
+		
+		if(primaryLsnFunction == null) {
+			int version = jdbcTemplate.execute((ConnectionCallback<Integer>) conn -> conn.getMetaData().getDatabaseMajorVersion());
+			primaryLsnFunction = version >= 10 ? "pg_current_wal_lsn" : "pg_current_xlog_location";
+		}
+		return primaryLsnFunction;
+	}
+	
+	/**
+	 * Requires the replicas to have replayed the WAL position of the primary at which a data version was read. 
+	 * Replicas that are behind are skipped and checked again right away.
+	 *
+	 * @param lsn - The WAL position of the primary, e.g. 16/B374D848
+	 */
+	public void requireLsn(String lsn) {
+		long required = requiredLsn.accumulateAndGet(parseLsn(lsn), Math::max);
+		for(Replica replica : replicas) {
+			if(replica.healthy && replica.replayLsn < required) {
+				scheduleRecheck();
+				return;
+			}
+		}
+	}
+	
+	private void scheduleRecheck() {
+		if(recheckScheduled.compareAndSet(false, true)) {
+			try {
+				healthCheckExecutor.execute(() -> {
+					recheckScheduled.set(false);
+					checkHealth();
+				});
+			} catch(RuntimeException e) {
+				recheckScheduled.set(false);
+				log.warn("Could not check the replicas: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * @return The WAL position as a number, or 0 if it is unknown
+	 */
+	static long parseLsn(String lsn) {
+		if(lsn == null) {
+			return 0;
+		}
+		
+		int separator = lsn.indexOf('/');
+		return Long.parseLong(lsn.substring(0, separator), 16) << 32 | Long.parseLong(lsn.substring(separator + 1), 16);
+	}
+	
+	/**
+	 * Gets a connection for a read query. All pages of a query use the same replica if replicas.pin-pages is true,
+	 * so the pages are consistent with each other.
+	 *
+	 * @param pinKey - Identifies the query without its paging, or null to use the least busy replica
+	 * @return The connection, to be closed by the caller
+	 * @throws SQLException If no connection could be made
+	 */
+	public Connection getConnection(String pinKey) throws SQLException {
+		return getConnection(pinKey, DataSource::getConnection);
+	}
+	
+	/**
+	 * Gets a connection from the chosen replica, or from the primary without healthy replicas.
+	 *
+	 * @param connector - Gets the connection from the datasource of the replica or the primary
+	 */
+	private Connection getConnection(String pinKey, Connector connector) throws SQLException {
+		List<Replica> healthy = getHealthyReplicas();
+		while(!healthy.isEmpty()) {
+			Replica replica;
+			if(pinPages && pinKey != null) {
+				replica = healthy.get(Math.floorMod(pinKey.hashCode(), healthy.size()));
+			} else {
+				replica = Collections.min(healthy, (a, b) -> Integer.compare(a.outstanding.get(), b.outstanding.get()));
+			}
+			
+			try {
+				return replica.getConnection(connector);
+			} catch(SQLException e) {
+				log.warn(String.format("Ejecting replica %s: %s", replica.url, e.getMessage()));
+				replica.healthy = false;
+				healthy.remove(replica);
+			}
+		}
+		
+		return connector.getConnection(jdbcTemplate.getDataSource());
+	}
+	
+	private List<Replica> getHealthyReplicas() {
+		long required = requiredLsn.get();
+		List<Replica> healthy = new ArrayList<>();
+		for(Replica replica : replicas) {
+			if(replica.healthy && replica.replayLsn >= required) {
+				healthy.add(replica);
+			}
+		}
+		
+		return healthy;
+	}
+	
+	/**
+	 * Checks the connection, the WAL receiver and the replication lag of every replica. On a replica that has 
+	 * replayed everything it received the lag is 0, so replicas of a primary without writes are not ejected. A 
+	 * replica of which the WAL receiver is disconnected has replayed everything it received as well, but no longer 
+	 * receives changes, so it is ejected. A server that is not in recovery is always up to date.
+	 */
+	void checkHealth() {
+		for(Replica replica : replicas) {
+			try(Connection conn = replica.dataSource.getConnection();
+				Statement stmt = conn.createStatement()) {
+				stmt.setQueryTimeout((int) Math.max(1, healthCheckInterval / 1000));
+				int version = conn.getMetaData().getDatabaseMajorVersion();
+				int minorVersion = conn.getMetaData().getDatabaseMinorVersion();
+				// pg_stat_wal_receiver exists since 9.6
+				String walReceiver = version > 9 || (version == 9 && minorVersion >= 6) ? WAL_RECEIVER_QUERY : "true";
+				String query = version >= 10 ? String.format(HEALTH_QUERY, "pg_last_wal_receive_lsn", "pg_last_wal_replay_lsn", walReceiver)
+						: String.format(HEALTH_QUERY, "pg_last_xlog_receive_location", "pg_last_xlog_replay_location", walReceiver);
+				
+				boolean recovery;
+				long replayLsn;
+				boolean receiving;
+				double lag;
+				try(ResultSet rs = stmt.executeQuery(query)) {
+					rs.next();
+					recovery = rs.getBoolean(1);
+					replayLsn = recovery ? parseLsn(rs.getString(2)) : Long.MAX_VALUE;
+					receiving = rs.getBoolean(3);
+					lag = rs.getDouble(4);
+				}
+				
+				boolean healthy = !recovery || (receiving && lag <= maxLag);
+				if(healthy != replica.healthy) {
+					log.info(String.format("Replica %s is %s, lag %.0f ms%s", replica.url, healthy ? "healthy" : "ejected", lag, 
+							!recovery || receiving ? "" : ", no active WAL receiver"));
+				}
+				replica.replayLsn = replayLsn;
+				replica.healthy = healthy;
+			} catch(SQLException e) {
+				if(replica.healthy) {
+					log.warn(String.format("Ejecting replica %s: %s", replica.url, e.getMessage()));
+				}
+				replica.healthy = false;
+			} catch(RuntimeException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+	
+	private static class Replica {
+		
+		private final String url;
+		private final DataSource dataSource;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private volatile boolean healthy;
+		private volatile long replayLsn;
+		
+		Replica(String url, DataSource dataSource) {
+			this.url = url;
+			this.dataSource = dataSource;
+		}
+		
+		/**
+		 * Gets a connection that counts as outstanding until it is closed.
+		 */
+		Connection getConnection(Connector connector) throws SQLException {
+			Connection conn = connector.getConnection(dataSource);
+			outstanding.incrementAndGet();
+			AtomicBoolean closed = new AtomicBoolean();
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{ Connection.class },
+					(proxy, method, args) -> {
+						if("close".equals(method.getName()) && closed.compareAndSet(false, true)) {
+							outstanding.decrementAndGet();
+						}
+						try {
+							return method.invoke(conn, args);
+						} catch(InvocationTargetException e) {
+							throw e.getCause();
+						}
+					});
+		}
+	}
+	
+	@FunctionalInterface
+	private interface Connector {
+		Connection getConnection(DataSource dataSource) throws SQLException;
+	}
+	
+	private class RoutingDataSource extends AbstractDataSource {
+		
+		@Override
+		public Connection getConnection() throws SQLException {
+			return ReplicaRouter.this.getConnection(null);
+		}
+		
+		@Override
+		public Connection getConnection(String username, String password) throws SQLException {
+			return ReplicaRouter.this.getConnection(null, dataSource -> dataSource.getConnection(username, password));
+		}
+	}
+}
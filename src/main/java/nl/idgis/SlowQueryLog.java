@@ -0,0 +1,196 @@
+package nl.idgis;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Keeps the most recent slow queries in memory. Queries slower than the explain threshold are explained on a
+ * background thread, on a replica like the query itself. Only with slow-query.explain-analyze the query is run 
+ * again with EXPLAIN (ANALYZE, BUFFERS), within the explain timeout. At most one plan is captured at a time and 
+ * plans are skipped while the explain queue is full.
+ */
+@Component
+public class SlowQueryLog {
+	
+	private static final Logger log = LoggerFactory.getLogger(SlowQueryLog.class);
+	
+	@Autowired
+	private ReplicaRouter replicaRouter;
+	
+	private final Deque<SlowQuery> queries = new ArrayDeque<>();
+	private final ThreadPoolExecutor explainExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(4), new ThreadPoolExecutor.DiscardPolicy());
+	
+	private final int capacity;
+	private final long threshold;
+	private final long explainThreshold;
+	private final boolean explainAnalyze;
+	private final long explainTimeout;
+	private final double sampleRate;
+	
+	public SlowQueryLog(
+			@Value("${slow-query.capacity:50}") int capacity,
+			@Value("${slow-query.threshold-ms:500}") long threshold,
+			@Value("${slow-query.explain-threshold-ms:2000}") long explainThreshold,
+			@Value("${slow-query.explain-analyze:false}") boolean explainAnalyze,
+			@Value("${slow-query.explain-timeout-ms:10000}") long explainTimeout,
+			@Value("${query.debug.sample-rate:0.0}") double sampleRate) {
+		this.capacity = capacity;
+		this.threshold = threshold;
+		this.explainThreshold = explainThreshold;
+		this.explainAnalyze = explainAnalyze;
+		this.explainTimeout = explainTimeout;
+		this.sampleRate = sampleRate;
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		explainExecutor.shutdownNow();
+	}
+	
+	/**
+	 * Starts the trace for a new query. The query is sampled for debug logging with the configured sample rate.
+	 *
+	 * @param layerId - The queried layer
+	 * @return The trace
+	 */
+	public QueryTrace newTrace(int layerId) {
+		return newTrace(layerId, CancellationToken.NONE);
+	}
+	
+	/**
+	 * Starts the trace for a new query that is cancelled with its request.
+	 *
+	 * @param layerId - The queried layer
+	 * @param cancellation - The deadline and cancellation of the request
+	 * @return The trace
+	 */
+	public QueryTrace newTrace(int layerId, CancellationToken cancellation) {
+		boolean sampled = sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+		return new QueryTrace(layerId, sampled, cancellation);
+	}
+	
+	/**
+	 * Records a finished query if it was slower than the threshold.
+	 *
+	 * @param trace - The trace of the finished query
+	 */
+	public void record(QueryTrace trace) {
+		long duration = trace.getDuration();
+		if(duration < threshold || trace.getSql() == null) {
+			return;
+		}
+		
+		log.info("Slow query on layer {} took {} ms: {}", trace.getLayerId(), duration, trace.getStages());
+		SlowQuery slowQuery = new SlowQuery(trace);
+		synchronized(queries) {
+			queries.addLast(slowQuery);
+			if(queries.size() > capacity) {
+				queries.removeFirst();
+			}
+		}
+		
+		if(explainThreshold >= 0 && duration >= explainThreshold) {
+			explainExecutor.execute(() -> explain(slowQuery));
+		}
+	}
+	
+	/**
+	 * Gets the recorded slow queries, the slowest first.
+	 *
+	 * @return The slow queries as a JsonArray
+	 */
+	public JsonArray getSlowQueries() {
+		List<SlowQuery> retVal;
+		synchronized(queries) {
+			retVal = new ArrayList<>(queries);
+		}
+		retVal.sort((a, b) -> Long.compare(b.trace.getDuration(), a.trace.getDuration()));
+		
+		JsonArray arr = new JsonArray();
+		for(SlowQuery slowQuery : retVal) {
+			arr.add(slowQuery.toJson());
+		}
+		return arr;
+	}
+	
+	private void explain(SlowQuery slowQuery) {
+		QueryTrace trace = slowQuery.trace;
+		String explain = explainAnalyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ";
+		try(Connection conn = replicaRouter.getConnection(null);
+			PreparedStatement statement = conn.prepareStatement(explain + trace.getSql())) {
+			
+			statement.setQueryTimeout((int) Math.max(1, explainTimeout / 1000));
+			QueryHandler.setParameters(statement, trace.getBinds());
+			
+			StringBuilder plan = new StringBuilder();
+			try(ResultSet rs = statement.executeQuery()) {
+				while(rs.next()) {
+					plan.append(rs.getString(1)).append('\n');
+				}
+			}
+			slowQuery.plan = plan.toString();
+		} catch(SQLException e) {
+			log.warn("Could not explain slow query: " + e.getMessage());
+			slowQuery.plan = "EXPLAIN failed: " + e.getMessage();
+		}
+	}
+	
+	private static class SlowQuery {
+		
+		private final QueryTrace trace;
+		private volatile String plan;
+		
+		SlowQuery(QueryTrace trace) {
+			this.trace = trace;
+		}
+		
+		JsonObject toJson() {
+			JsonObject obj = new JsonObject();
+			obj.addProperty("layerId", trace.getLayerId());
+			obj.addProperty("started", trace.getStarted());
+			obj.addProperty("duration", trace.getDuration());
+			obj.addProperty("rows", trace.getRows());
+			obj.addProperty("sql", trace.getSql());
+			
+			JsonArray binds = new JsonArray();
+			for(Object bind : trace.getBinds()) {
+				binds.add(new JsonPrimitive(bind instanceof Object[] ? Arrays.toString((Object[]) bind) : String.valueOf(bind)));
+			}
+			obj.add("binds", binds);
+			
+			JsonObject stages = new JsonObject();
+			for(Map.Entry<String, Long> stage : trace.getStages().entrySet()) {
+				stages.addProperty(stage.getKey(), stage.getValue());
+			}
+			obj.add("stages", stages);
+			obj.addProperty("plan", plan);
+			
+			return obj;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package nl.idgis.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys to peers with consistent hashing. Every peer is placed on the ring a number of times, so the keys
+ * are spread evenly and only the keys of a removed peer move to other peers.
+ */
+public class ConsistentHashRing {
+	
+	private static final int VIRTUAL_NODES = 100;
+	
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+	
+	/**
+	 * @param peers - The base urls of all peers, including this instance. All peers must use the same list.
+	 */
+	public ConsistentHashRing(List<String> peers) {
+		for(String peer : peers) {
+			for(int i = 0; i < VIRTUAL_NODES; i++) {
+				ring.put(hash(peer + "#" + i), peer);
+			}
+		}
+	}
+	
+	/**
+	 * @param key - The cache key
+	 * @return The peer that owns the key
+	 */
+	public String getOwner(String key) {
+		Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+		return owner == null ? ring.firstEntry().getValue() : owner.getValue();
+	}
+	
+	private static long hash(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for(int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package nl.idgis.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Cache that is shared by all instances of the service. Every key is owned by one instance, chosen by consistent
+ * hashing over cache.peers. An instance that does not own a key asks the owner for it, and on a miss loads the
+ * value itself and stores it at the owner. Values fetched from other instances are kept for a short time in a
+ * near cache, so hot keys don't need a request to the owner every time. Concurrent requests for the same key 
+ * share one request to the owner or one load. Without cache.peers only the local cache is used. The instances send cache.peer-secret with every request, the internal endpoints refuse requests 
+ * without it.
+ */
+@Component
+public class PeerCache {
+	
+	private static final Logger log = LoggerFactory.getLogger(PeerCache.class);
+	
+	public static final String CACHE_PATH = "/rest/internal/cache/";
+	public static final String SECRET_HEADER = "X-Cache-Secret";
+	
+	private static final long UNAVAILABLE_TIME = 10000;
+	
+	/**
+	 * Every queued store holds a complete response. While the owner is slow or down further stores are dropped, 
+	 * the owner then misses and the value is loaded again.
+	 */
+	private static final int MAX_QUEUED_STORES = 16;
+	
+	@Autowired
+	private ResponseCache localCache;
+	
+	private final String self;
+	private final String secret;
+	private final ConsistentHashRing ring;
+	private final RestTemplate restTemplate;
+	private final ResponseCache nearCache;
+	private final Map<String, Long> unavailablePeers = new ConcurrentHashMap<>();
+	private final ThreadPoolExecutor storeExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(MAX_QUEUED_STORES), new ThreadPoolExecutor.DiscardPolicy());
+	
+	public PeerCache(
+			@Value("${cache.self:}") String self,
+			@Value("${cache.peers:}") String peers,
+			@Value("${cache.peer-secret:}") String secret,
+			@Value("${cache.peer-timeout-ms:500}") int peerTimeout,
+			@Value("${cache.near.max-bytes:16777216}") long nearMaxBytes,
+			@Value("${cache.near.ttl-ms:5000}") long nearTtl) {
+		List<String> peerList = new ArrayList<>();
+		for(String peer : peers.split(",")) {
+			if(!"".equals(peer.trim())) {
+				peerList.add(peer.trim());
+			}
+		}
+		
+		if(!peerList.isEmpty() && "".equals(secret)) {
+			log.warn("cache.peer-secret is not set, other instances can't use the cache of this instance");
+		}
+		
+		this.self = self;
+		this.secret = secret;
+		this.ring = peerList.isEmpty() ? null : new ConsistentHashRing(peerList);
+		this.nearCache = new ResponseCache(nearMaxBytes, nearTtl);
+		
+		SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+		requestFactory.setConnectTimeout(peerTimeout);
+		requestFactory.setReadTimeout(peerTimeout);
+		this.restTemplate = new RestTemplate(requestFactory);
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		storeExecutor.shutdownNow();
+	}
+	
+	/**
+	 * Gets the value for the key from the owner of the key, or loads it if no instance has it.
+	 *
+	 * @param key - The cache key, must be safe to use in a url
+	 * @param loader - Loads the value on a miss
+	 * @return The cached or loaded value
+	 */
+	public String get(String key, Supplier<String> loader) {
+		String owner = getOwner(key);
+		if(owner == null) {
+			return localCache.get(key, loader);
+		}
+		
+		return nearCache.get(key, () -> {
+			String value = getFromPeer(owner, key);
+			if(value == null) {
+				value = loader.get();
+				storeAtPeer(owner, key, value);
+			}
+			return value;
+		});
+	}
+	
+	/**
+	 * Checks whether this instance owns the key. Other instances only store keys at their owner.
+	 */
+	public boolean isOwner(String key) {
+		return getOwner(key) == null;
+	}
+	
+	/**
+	 * Checks the secret of a request from another instance. Without a configured secret no request is accepted.
+	 *
+	 * @param requestSecret - The secret sent by the instance, or null
+	 * @return True if the secret matches cache.peer-secret
+	 */
+	public boolean isPeerSecret(String requestSecret) {
+		if("".equals(secret) || requestSecret == null) {
+			return false;
+		}
+		
+		// Compared in constant time, so the secret can't be guessed from the response times
+		return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), 
+				requestSecret.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * @return The base url of the owner, or null if this instance owns the key
+	 */
+	private String getOwner(String key) {
+		if(ring == null) {
+			return null;
+		}
+		
+		String owner = ring.getOwner(key);
+		return owner.equals(self) ? null : owner;
+	}
+	
+	/**
+	 * Gets the value from the owner. A peer that can't be reached is skipped for a while, so requests don't wait 
+	 * for the timeout every time.
+	 */
+	private String getFromPeer(String owner, String key) {
+		Long unavailableUntil = unavailablePeers.get(owner);
+		if(unavailableUntil != null && unavailableUntil > System.currentTimeMillis()) {
+			return null;
+		}
+		
+		try {
+			ResponseEntity<String> response = restTemplate.exchange(owner + CACHE_PATH + key, HttpMethod.GET, 
+					new HttpEntity<>(getHeaders()), String.class);
+			return response.getBody();
+		} catch(HttpClientErrorException e) {
+			if(e.getStatusCode() != HttpStatus.NOT_FOUND) {
+				log.warn(String.format("Could not get %s from %s: %s", key, owner, e.getMessage()));
+			}
+		} catch(RestClientException e) {
+			log.warn(String.format("Could not get %s from %s: %s", key, owner, e.getMessage()));
+			unavailablePeers.put(owner, System.currentTimeMillis() + UNAVAILABLE_TIME);
+		}
+		return null;
+	}
+	
+	private void storeAtPeer(String owner, String key, String value) {
+		storeExecutor.execute(() -> {
+			try {
+				HttpHeaders headers = getHeaders();
+				headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+				restTemplate.put(owner + CACHE_PATH + key, new HttpEntity<>(value, headers));
+			} catch(RestClientException e) {
+				log.warn(String.format("Could not store %s at %s: %s", key, owner, e.getMessage()));
+			}
+		});
+	}
+	
+	private HttpHeaders getHeaders() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(SECRET_HEADER, secret);
+		return headers;
+	}
+}
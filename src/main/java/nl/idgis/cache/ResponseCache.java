@@ -0,0 +1,168 @@
+package nl.idgis.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import nl.idgis.QueryCancelledException;
+
+/**
+ * Local LRU cache for encoded responses, bounded by the size of the responses. Concurrent misses for the same 
+ * key are loaded once, the other requests wait for that result. Entries can expire after a ttl, for copies of 
+ * values that are owned elsewhere.
+ */
+@Component
+public class ResponseCache {
+	
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+	private final long maxBytes;
+	private final long ttl;
+	private long bytes;
+	
+	/**
+	 * @param maxBytes - The maximum total size of the keys and values, counted as two bytes per character
+	 */
+	@Autowired
+	public ResponseCache(@Value("${cache.local.max-bytes:268435456}") long maxBytes) {
+		this(maxBytes, 0);
+	}
+	
+	/**
+	 * @param maxBytes - The maximum total size of the keys and values, counted as two bytes per character
+	 * @param ttl - The time in milliseconds an entry is used after it was stored, 0 to keep entries until they are 
+	 * 		evicted
+	 */
+	public ResponseCache(long maxBytes, long ttl) {
+		this.maxBytes = maxBytes;
+		this.ttl = ttl;
+	}
+	
+	/**
+	 * @param key - The cache key
+	 * @return The cached value or null
+	 */
+	public synchronized String get(String key) {
+		Entry entry = entries.get(key);
+		if(entry == null) {
+			return null;
+		}
+		if(ttl > 0 && System.currentTimeMillis() - entry.stored >= ttl) {
+			entries.remove(key);
+			bytes -= getSize(key, entry.value);
+			return null;
+		}
+		
+		return entry.value;
+	}
+	
+	/**
+	 * Stores the value and removes the least recently used entries until the cache fits in its size again. A 
+	 * value larger than the cache is not stored.
+	 */
+	public synchronized void put(String key, String value) {
+		Entry previous = entries.remove(key);
+		if(previous != null) {
+			bytes -= getSize(key, previous.value);
+		}
+		
+		long size = getSize(key, value);
+		if(size > maxBytes) {
+			return;
+		}
+		entries.put(key, new Entry(value));
+		bytes += size;
+		
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while(bytes > maxBytes) {
+			Map.Entry<String, Entry> entry = eldest.next();
+			bytes -= getSize(entry.getKey(), entry.getValue().value);
+			eldest.remove();
+		}
+	}
+	
+	/**
+	 * @return The total size of the keys and values in bytes
+	 */
+	public synchronized long getSize() {
+		return bytes;
+	}
+	
+	private static long getSize(String key, String value) {
+		return 2L * (key.length() + value.length());
+	}
+	
+	/**
+	 * Gets the value from the cache or loads it. If the value is already being loaded by another request, this
+	 * waits for that request instead of loading it again. If that request is cancelled because its client went
+	 * away, the waiting request loads the value itself.
+	 *
+	 * @param key - The cache key
+	 * @param loader - Loads the value on a miss
+	 * @return The cached or loaded value
+	 */
+	public String get(String key, Supplier<String> loader) {
+		String value = get(key);
+		if(value != null) {
+			return value;
+		}
+		
+		CompletableFuture<String> future = new CompletableFuture<>();
+		CompletableFuture<String> existing = loading.putIfAbsent(key, future);
+		if(existing != null) {
+			try {
+				return join(existing);
+			} catch(QueryCancelledException e) {
+				if(e.isTimedOut()) {
+					throw e;
+				}
+				loading.remove(key, existing);
+				return get(key, loader);
+			}
+		}
+		
+		try {
+			value = loader.get();
+			put(key, value);
+			future.complete(value);
+			return value;
+		} catch(RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key, future);
+		}
+	}
+	
+	private String join(CompletableFuture<String> future) {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	private static class Entry {
+		
+		private final String value;
+		private final long stored = System.currentTimeMillis();
+		
+		Entry(String value) {
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package nl.idgis.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.google.gson.JsonObject;
+
+import nl.idgis.CancellationStats;
+import nl.idgis.ErrorMessageHandler;
+import nl.idgis.SlowQueryLog;
+
+/**
+ * Endpoints for the maintainers of the service. These are only available if admin.enabled is true, as they
+ * expose the SQL of the queries.
+ */
+@RestController
+@RequestMapping("/rest/admin")
+public class AdminController {
+	
+	@Autowired
+	private SlowQueryLog slowQueryLog;
+	
+	@Autowired
+	private CancellationStats cancellationStats;
+	
+	@Value("${admin.enabled:false}")
+	private boolean enabled;
+	
+	/**
+	 * Gets the most recent slow queries with their bind values, timings, row counts and, for the slowest, the
+	 * query plan.
+	 *
+	 * @return The slow queries in JSON, the slowest first
+	 */
+	@RequestMapping("/slowQueries")
+	public ResponseEntity<?> getSlowQueries() {
+		if(!enabled) {
+			return new ResponseEntity<>(ErrorMessageHandler.getErrorMessage("Not found"), HttpStatus.NOT_FOUND);
+		}
+		
+		JsonObject obj = new JsonObject();
+		obj.add("slowQueries", slowQueryLog.getSlowQueries());
+		
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+		headers.setCacheControl("no-store");
+		return new ResponseEntity<>(obj.toString(), headers, HttpStatus.OK);
+	}
+	
+	/**
+	 * Gets the number of queries that were stopped because they timed out or their client went away, in total
+	 * and per stage in which they stopped.
+	 *
+	 * @return The counters in JSON
+	 */
+	@RequestMapping("/cancelledQueries")
+	public ResponseEntity<?> getCancelledQueries() {
+		if(!enabled) {
+			return new ResponseEntity<>(ErrorMessageHandler.getErrorMessage("Not found"), HttpStatus.NOT_FOUND);
+		}
+		
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+		headers.setCacheControl("no-store");
+		return new ResponseEntity<>(cancellationStats.toJson().toString(), headers, HttpStatus.OK);
+	}
+}
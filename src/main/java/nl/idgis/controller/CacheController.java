@@ -0,0 +1,68 @@
+package nl.idgis.controller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import nl.idgis.cache.PeerCache;
+import nl.idgis.cache.ResponseCache;
+
+/**
+ * Endpoints through which the instances of the service share their cache. Only the keys owned by this instance
+ * are stored here, see {@link PeerCache}. The endpoints only exist when cache.peers is configured, and only 
+ * answer requests with the shared cache.peer-secret.
+ */
+@RestController
+@ConditionalOnExpression("'${cache.peers:}'.trim() != ''")
+@RequestMapping(PeerCache.CACHE_PATH)
+public class CacheController {
+	
+	private static final String KEY_PATTERN = "[0-9a-f]{1,64}";
+	
+	@Autowired
+	private ResponseCache localCache;
+	
+	@Autowired
+	private PeerCache peerCache;
+	
+	@RequestMapping(value="{key}", method=RequestMethod.GET)
+	public ResponseEntity<String> getEntry(@PathVariable String key, 
+			@RequestHeader(value=PeerCache.SECRET_HEADER, required=false) String secret) {
+		if(!peerCache.isPeerSecret(secret)) {
+			return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+		}
+		
+		String value = key.matches(KEY_PATTERN) ? localCache.get(key) : null;
+		if(value == null) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+		
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+		return new ResponseEntity<>(value, headers, HttpStatus.OK);
+	}
+	
+	@RequestMapping(value="{key}", method=RequestMethod.PUT)
+	public ResponseEntity<String> putEntry(@PathVariable String key, @RequestBody String value, 
+			@RequestHeader(value=PeerCache.SECRET_HEADER, required=false) String secret) {
+		if(!peerCache.isPeerSecret(secret)) {
+			return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+		}
+		
+		if(!key.matches(KEY_PATTERN) || !peerCache.isOwner(key)) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		
+		localCache.put(key, value);
+		return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+	}
+}
@@ -1,28 +1,65 @@
 package nl.idgis.controller;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.json.JsonParser;
 import org.springframework.boot.json.JsonParserFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.BadSqlGrammarException;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.util.UrlPathHelper;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
+import nl.idgis.CancellationStats;
+import nl.idgis.CancellationToken;
 import nl.idgis.ErrorMessageHandler;
 import nl.idgis.MetaDataHandler;
+import nl.idgis.QueryCancelledException;
+import nl.idgis.cache.PeerCache;
 import nl.idgis.featurelayer.FeatureLayerHandler;
 import nl.idgis.featureserver.FeatureServerHandler;
+import nl.idgis.query.AdmissionControl;
+import nl.idgis.query.ExportBuilder;
+import nl.idgis.query.ExportFormat;
+import nl.idgis.query.LayerDefinition;
 import nl.idgis.query.QueryBuilder;
+import nl.idgis.query.ServiceOverloadedException;
+import nl.idgis.query.SpatialFilter;
+import nl.idgis.query.StatisticsBuilder;
 
 @RestController
 @RequestMapping("/rest")
@@ -31,10 +68,36 @@ public class Controller {
 	private static final Logger log = LoggerFactory.getLogger(Controller.class);
 	
 	private static final String FORMAT_ERROR_MESSAGE = "Invalid format type. Can only return JSON!";
+	private static final String EXPORT_FORMAT_ERROR_MESSAGE = "Invalid format type. Can only export GeoJSON or CSV!";
 	
 	@Autowired
 	private QueryBuilder builder;
 	
+	@Autowired
+	private StatisticsBuilder statisticsBuilder;
+	
+	@Autowired
+	private AdmissionControl admissionControl;
+	
+	@Autowired
+	private PeerCache peerCache;
+	
+	@Autowired
+	private ExportBuilder exportBuilder;
+	
+	@Autowired
+	private CancellationStats cancellationStats;
+	
+	@Autowired
+	@Qualifier("queryRequestExecutor")
+	private ExecutorService queryRequestExecutor;
+	
+	@Value("${query.cache.max-age:0}")
+	private int cacheMaxAge;
+	
+	@Value("${query.timeout-ms:30000}")
+	private long queryTimeout;
+	
 	/**
 	 * The ServerInfo resource provides general information about the server (e.g. current version of the server), 
 	 * and provides information on whether the server is secured using token based authentication; and the token 
@@ -113,6 +176,129 @@ public class Controller {
 		return new ResponseEntity<>(metaDataHandler.getMetadata("./examples/featureserver.json"), HttpStatus.OK);
 	}
 	
+	/**
+	 * This mapping queries multiple layers of the FeatureServer at once. The layers are queried in parallel and 
+	 * the results are streamed to the client in the order of the layerDefs.
+	 * @param serviceName - The service name
+	 * @param formatType - The response format. Only json is available.
+	 * @param layerDefs - The where clause and outFields per layer, e.g. {"0":"CD_VISIE = 1","2":""}. All layers 
+	 * 		are queried if this parameter is empty.
+	 * @param returnGeometry - If true, the resultset includes the geometry associated with each result. The default is true.
+	 * @param geometry - The geometry to filter the features with. Applies to all layers.
+	 * @param geometryType - The type of the geometry, e.g. esriGeometryPolygon. The default is esriGeometryEnvelope.
+	 * @param spatialRel - The spatial relationship of the features with the geometry. The default is esriSpatialRelIntersects.
+	 * @param distance - The distance around the geometry within which features are returned.
+	 * @param units - The unit of the distance. The default is esriSRUnit_Meter.
+	 * @param inSR - The spatial reference of the geometry. Defaults to the spatialReference of the geometry or 28992.
+	 * @param outSR - The spatial reference of the returned geometries. The default is 28992.
+	 * @return The query results for all requested layers in JSON
+	 */
+	@RequestMapping("/services/{serviceName}/FeatureServer/query")
+	public ResponseEntity<StreamingResponseBody> getLayersQueryResult(
+			@PathVariable String serviceName,
+			@RequestParam(value="f", defaultValue="json") String formatType,
+			@RequestParam(value="layerDefs", defaultValue="") String layerDefs,
+			@RequestParam(value="returnGeometry", defaultValue="true") boolean returnGeometry,
+			@RequestParam(value="maxAllowableOffset", defaultValue="") String maxAllowableOffset,
+			@RequestParam(value="geometry", defaultValue="") String geometry,
+			@RequestParam(value="geometryType", defaultValue="esriGeometryEnvelope") String geometryType,
+			@RequestParam(value="spatialRel", defaultValue="esriSpatialRelIntersects") String spatialRel,
+			@RequestParam(value="distance", defaultValue="0") double distance,
+			@RequestParam(value="units", defaultValue="esriSRUnit_Meter") String units,
+			@RequestParam(value="inSR", defaultValue="") String inSR,
+			@RequestParam(value="outSR", defaultValue="28992") int outSR,
+			@RequestHeader(value="If-None-Match", required=false) String ifNoneMatch) {
+		
+		log.debug("Got a query request for layers {}, getting data...", layerDefs);
+		
+		if(!"json".equalsIgnoreCase(formatType)) {
+			log.warn(FORMAT_ERROR_MESSAGE);
+			return getStreamingResponse(new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(FORMAT_ERROR_MESSAGE), HttpStatus.BAD_REQUEST));
+		}
+		
+		SpatialFilter filter;
+		try {
+			filter = SpatialFilter.fromParameters(geometry, geometryType, inSR, spatialRel, distance, units);
+		} catch(IllegalArgumentException e) {
+			log.warn(e.getMessage());
+			return getStreamingResponse(new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(e.getMessage()), HttpStatus.BAD_REQUEST));
+		}
+		
+		List<LayerDefinition> layerDefinitions;
+		try {
+			layerDefinitions = builder.getLayerDefinitions(layerDefs);
+		} catch(IllegalArgumentException e) {
+			log.warn(e.getMessage());
+			return getStreamingResponse(new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(e.getMessage()), HttpStatus.BAD_REQUEST));
+		}
+		
+		List<Integer> layerIds = new ArrayList<>();
+		StringBuilder query = new StringBuilder();
+		for(LayerDefinition layerDefinition : layerDefinitions) {
+			layerIds.add(layerDefinition.getLayerId());
+			query.append(layerDefinition.getLayerId() + "|" + layerDefinition.getWhere() + "|" + layerDefinition.getOutFields() + "|");
+		}
+		query.append(returnGeometry + "|" + maxAllowableOffset + "|" + filter + "|" + outSR);
+		
+		HttpHeaders headers = getCacheHeaders(builder.getETag(layerIds, query.toString()));
+		if(isNotModified(headers, ifNoneMatch)) {
+			return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+		}
+		
+		// Every layer query runs on its own connection, so every layer takes its own permit
+		boolean expensive = admissionControl.isExpensive(returnGeometry, QueryBuilder.MAX_RECORD_COUNT, filter);
+		List<AdmissionControl.Permit> permits = new ArrayList<>();
+		try {
+			for(int layerId : layerIds) {
+				permits.add(admissionControl.acquire(Collections.singletonList(layerId), expensive));
+			}
+		} catch(ServiceOverloadedException e) {
+			permits.forEach(AdmissionControl.Permit::close);
+			return getStreamingResponse(getOverloadedResponse(e));
+		}
+		
+		List<CancellationToken> cancellations = new ArrayList<>();
+		List<Future<String>> results = new ArrayList<>();
+		try {
+			for(int i = 0; i < layerDefinitions.size(); i++) {
+				CancellationToken cancellation = new CancellationToken(queryTimeout);
+				cancellations.add(cancellation);
+				results.add(builder.submitLayerQuery(layerDefinitions.get(i), returnGeometry, maxAllowableOffset, filter, outSR, 
+						permits.get(i), cancellation));
+			}
+		} catch(RuntimeException e) {
+			cancelLayerQueries(cancellations, results);
+			permits.forEach(AdmissionControl.Permit::close);
+			throw e;
+		}
+		
+		// The layer queries release their permits when they are done. If the client goes away or writing fails, the
+		// queries of the layers that are not written yet are cancelled.
+		StreamingResponseBody body = (OutputStream out) -> {
+			boolean written = false;
+			try {
+				out.write("{\"layers\":[".getBytes(StandardCharsets.UTF_8));
+				for(int i = 0; i < results.size(); i++) {
+					if(i > 0) {
+						out.write(',');
+					}
+					out.write(getLayerResult(layerDefinitions.get(i), results.get(i)).getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				}
+				out.write("]}".getBytes(StandardCharsets.UTF_8));
+				written = true;
+			} finally {
+				if(!written) {
+					log.debug("Stopped writing the query result of layers {}, cancelling the layer queries", layerIds);
+					cancelLayerQueries(cancellations, results);
+				}
+			}
+		};
+		
+		headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+		return new ResponseEntity<>(body, headers, HttpStatus.OK);
+	}
+	
 	/**
 	 * This mapping gets the metadata for the FeatureLayer. If an invalid format type is given, it will give
 	 * an error message in json.
@@ -156,7 +342,15 @@ public class Controller {
 	 * @param formatType - The response format. The default response format is html.
 	 * @param where - A where clause for the query filter. Any legal SQL where clause operating on the fields in the layer is allowed.
 	 * @param returnGeometry - If true, the resultset includes the geometry associated with each result. The default is true.
-	 * @param geometry - The extent of the geometry to get from the database.
+	 * @param geometry - The geometry to filter the features with.
+	 * @param geometryType - The type of the geometry, e.g. esriGeometryPolygon. The default is esriGeometryEnvelope.
+	 * @param spatialRel - The spatial relationship of the features with the geometry. The default is esriSpatialRelIntersects.
+	 * @param distance - The distance around the geometry within which features are returned.
+	 * @param units - The unit of the distance. The default is esriSRUnit_Meter.
+	 * @param inSR - The spatial reference of the geometry. Defaults to the spatialReference of the geometry or 28992.
+	 * @param outSR - The spatial reference of the returned geometries. The default is 28992.
+	 * @param objectIds - The comma delimited OBJECTIDs of the features to return, e.g. 37,462. Combined with the where clause 
+	 * 		and geometry if given.
 	 * @param outFields -  The list of fields to be included in the returned resultset. This list is a comma delimited 
 	 * 		list of field names. If you specify the shape field in the list of return fields, it is ignored. To request geometry, 
 	 * 		set returnGeometry to true. You can also specify the wildcard "*" as the value of this parameter. In this case, the 
@@ -170,10 +364,22 @@ public class Controller {
 	 * 		When resultOffset is specified but this parameter is not, the map service defaults it to maxRecordCount. 
 	 * 		The maximum value for this parameter is the value of the layer's maxRecordCount property. This parameter only applies if 
 	 * 		supportsPagination is true. Example: resultRecordCount=10 to fetch up to 10 records
-	 * @return The metadata for the specified query in JSON
+	 * @param outStatistics - The definitions for one or more field-based statistics to be calculated, as a json array 
+	 * 		of objects with statisticType (count, sum, min, max, avg, stddev or var), onStatisticField and 
+	 * 		outStatisticFieldName.
+	 * @param groupByFieldsForStatistics - One or more field names by which the values will be grouped for calculating 
+	 * 		the statistics.
+	 * @param returnDistinctValues - If true, the query returns distinct values of the outFields instead of features.
+	 * @param clip - If true, the geometries are clipped to the envelope given as geometry. Clipped features are marked 
+	 * 		with "clipped":true. Defaults to true for the layers in query.clip.layers.
+	 * @return The metadata for the specified query in JSON. The query is cancelled when the client goes away and 
+	 * 		stopped after query.timeout-ms. Queries with an export format, e.g. f=geojson or f=CSV, are forwarded to
+	 * 		{@link #getExport}.
+	 * @throws ServletException If the forward to the export fails
+	 * @throws IOException If the forward to the export fails
 	 */
 	@RequestMapping("/services/{serviceName}/FeatureServer/{layerId}/query")
-	public ResponseEntity<Map<String, Object>> getQueryResult(
+	public DeferredResult<ResponseEntity<?>> getQueryResult(
 			@PathVariable String serviceName,
 			@PathVariable int layerId,
 			@RequestParam(value="f", defaultValue="json") String formatType,
@@ -181,25 +387,340 @@ public class Controller {
 			@RequestParam(value="returnGeometry", defaultValue="true") boolean returnGeometry,
 			@RequestParam(value="maxAllowableOffset", defaultValue="") String maxAllowableOffset,
 			@RequestParam(value="geometry", defaultValue="") String geometry,
+			@RequestParam(value="geometryType", defaultValue="esriGeometryEnvelope") String geometryType,
+			@RequestParam(value="spatialRel", defaultValue="esriSpatialRelIntersects") String spatialRel,
+			@RequestParam(value="distance", defaultValue="0") double distance,
+			@RequestParam(value="units", defaultValue="esriSRUnit_Meter") String units,
+			@RequestParam(value="objectIds", defaultValue="") String objectIds,
 			@RequestParam(value="outFields", defaultValue="*") String outFields,
+			@RequestParam(value="inSR", defaultValue="") String inSR,
 			@RequestParam(value="outSR", defaultValue="28992") int outSR,
 			@RequestParam(value="resultOffset", defaultValue="0") int resultOffset,
-			@RequestParam(value="resultRecordCount", defaultValue="8000") int resultRecordCount) {
+			@RequestParam(value="resultRecordCount", defaultValue="8000") int resultRecordCount,
+			@RequestParam(value="outStatistics", defaultValue="") String outStatistics,
+			@RequestParam(value="groupByFieldsForStatistics", defaultValue="") String groupByFieldsForStatistics,
+			@RequestParam(value="returnDistinctValues", defaultValue="false") boolean returnDistinctValues,
+			@RequestParam(value="clip", required=false) Boolean clip,
+			@RequestHeader(value="If-None-Match", required=false) String ifNoneMatch,
+			HttpServletRequest request,
+			HttpServletResponse servletResponse) throws ServletException, IOException {
+		
+		// The export streams its result, which a DeferredResult can't, so the mapping of the export writes it
+		if(ExportFormat.fromFormatType(formatType) != null) {
+			forwardToExport(request, servletResponse);
+			return null;
+		}
 		
-		log.debug(String.format("Got a query request for layer %d, getting data...", layerId));
+		log.debug("Got a query request for layer {}, getting data...", layerId);
+		
+		DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(queryTimeout > 0 ? queryTimeout + 1000 : 0L);
 		
 		// Check for required fields to be present
 		if(!"json".equalsIgnoreCase(formatType)) {
 			log.warn(FORMAT_ERROR_MESSAGE);
-			return new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(FORMAT_ERROR_MESSAGE), HttpStatus.BAD_REQUEST);
+			result.setResult(new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(FORMAT_ERROR_MESSAGE), HttpStatus.BAD_REQUEST));
+			return result;
+		}
+		
+		SpatialFilter filter;
+		try {
+			filter = SpatialFilter.fromParameters(geometry, geometryType, inSR, spatialRel, distance, units);
+		} catch(IllegalArgumentException e) {
+			log.warn(e.getMessage());
+			result.setResult(new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(e.getMessage()), HttpStatus.BAD_REQUEST));
+			return result;
 		}
 		
-		String retVal = builder.getJsonQueryResult(layerId, where, returnGeometry, maxAllowableOffset, geometry, outFields, outSR, resultOffset, resultRecordCount);
+		// The query is cancelled in the database when the client goes away or the deadline passes
+		CancellationToken cancellation = new CancellationToken(queryTimeout);
+		result.onTimeout(() -> {
+			cancellation.cancel();
+			result.setResult(getCancelledResponse(new QueryCancelledException("The query took too long", "response", true)));
+		});
+		WebAsyncUtils.getAsyncManager(request).registerDeferredResultInterceptor(cancellation, new DisconnectInterceptor(() -> {
+			if(cancellation.cancel()) {
+				log.debug("The client of a query on layer {} went away, cancelled the query", layerId);
+			}
+		}));
+		
+		queryRequestExecutor.execute(() -> {
+			ResponseEntity<?> response;
+			try {
+				response = getQueryResponse(layerId, where, returnGeometry, maxAllowableOffset, filter, objectIds, outFields, outSR, 
+						resultOffset, resultRecordCount, outStatistics, groupByFieldsForStatistics, returnDistinctValues, clip, 
+						ifNoneMatch, cancellation);
+			} catch(QueryCancelledException e) {
+				cancellationStats.record(e);
+				log.info("Stopped a query on layer {} in stage {}: {}", layerId, e.getStage(), e.getMessage());
+				response = getCancelledResponse(e);
+			} catch(RuntimeException e) {
+				cancellation.complete();
+				result.setErrorResult(e);
+				return;
+			}
+			
+			cancellation.complete();
+			result.setResult(response);
+		});
+		
+		return result;
+	}
+	
+	/**
+	 * Runs the query on a thread of the queryRequestExecutor. The request thread is free while it runs, so the 
+	 * query can be cancelled when the client goes away.
+	 */
+	private ResponseEntity<?> getQueryResponse(int layerId, String where, boolean returnGeometry, String maxAllowableOffset, 
+			SpatialFilter filter, String objectIds, String outFields, int outSR, int resultOffset, int resultRecordCount, 
+			String outStatistics, String groupByFieldsForStatistics, boolean returnDistinctValues, Boolean clip, String ifNoneMatch, 
+			CancellationToken cancellation) {
+		
+		String query = where + "|" + returnGeometry + "|" + maxAllowableOffset + "|" + filter + "|" + objectIds + "|" + outFields + "|" 
+				+ outSR + "|" + resultOffset + "|" + resultRecordCount + "|" + outStatistics + "|" + groupByFieldsForStatistics + "|" 
+				+ returnDistinctValues + "|" + clip;
+		HttpHeaders headers = getCacheHeaders(builder.getETag(Collections.singletonList(layerId), query));
+		if(isNotModified(headers, ifNoneMatch)) {
+			log.debug("Data not modified, returning 304...");
+			return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+		}
+		
+		boolean statistics = !"".equals(outStatistics) || returnDistinctValues;
+		// An objectIds query fetches at most the given features
+		int recordCount = "".equals(objectIds.trim()) ? resultRecordCount : Math.min(resultRecordCount, objectIds.split(",").length);
+		boolean expensive = !statistics && admissionControl.isExpensive(returnGeometry, recordCount, filter);
+		
+		// Only a miss in the shared cache needs a permit, hits are served without touching the database
+		Supplier<String> loader = () -> {
+			AdmissionControl.Permit permit = admissionControl.acquire(Collections.singletonList(layerId), expensive);
+			try {
+				if(statistics) {
+					return statisticsBuilder.getJsonStatisticsResult(layerId, where, filter, outStatistics, 
+							groupByFieldsForStatistics, returnDistinctValues, outFields);
+				}
+				return builder.getJsonQueryResult(layerId, where, returnGeometry, maxAllowableOffset, filter, objectIds, outFields, outSR, 
+						resultOffset, resultRecordCount, clip, cancellation);
+			} finally {
+				permit.close();
+			}
+		};
+		
+		String retVal;
+		try {
+			String eTag = headers.getETag();
+			retVal = eTag == null ? loader.get() : peerCache.get(getCacheKey(eTag), loader);
+		} catch(ServiceOverloadedException e) {
+			return getOverloadedResponse(e);
+		} catch(IllegalArgumentException e) {
+			log.warn(e.getMessage());
+			return new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(e.getMessage()), HttpStatus.BAD_REQUEST);
+		} catch(DataAccessException e) {
+			log.error(e.getMessage(), e);
+			return getQueryErrorResponse(e, statistics ? "Unable to calculate the statistics" : "Unable to complete the query");
+		}
 		
 		log.debug("Got the data, returning the result...");
+		headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+		return new ResponseEntity<>(retVal, headers, HttpStatus.OK);
+	}
+	
+	/**
+	 * This mapping exports all features of a layer matching the query. The features are streamed to the client 
+	 * while they are read from the database, so layers of any size can be exported in one request. A query with 
+	 * an export format is forwarded to this mapping, exports are not paged.
+	 * @param serviceName - The service name
+	 * @param layerId - The layer id for the given service name.
+	 * @param formatType - The export format, geojson or csv in any case. The geometries are written as WKT in a csv 
+	 * 		export.
+	 * @param where - A where clause for the query filter.
+	 * @param geometry - The geometry to filter the features with.
+	 * @param geometryType - The type of the geometry. The default is esriGeometryEnvelope.
+	 * @param spatialRel - The spatial relationship of the features with the geometry. The default is esriSpatialRelIntersects.
+	 * @param distance - The distance around the geometry within which features are exported.
+	 * @param units - The unit of the distance. The default is esriSRUnit_Meter.
+	 * @param outFields - The comma delimited list of fields to export, or "*" for all fields.
+	 * @param inSR - The spatial reference of the geometry. Defaults to the spatialReference of the geometry or 28992.
+	 * @param outSR - The spatial reference of the exported geometries. The default is 28992.
+	 * @return The features in GeoJSON or CSV
+	 */
+	@RequestMapping("/services/{serviceName}/FeatureServer/{layerId}/export")
+	public ResponseEntity<StreamingResponseBody> getExport(
+			@PathVariable String serviceName,
+			@PathVariable int layerId,
+			@RequestParam(value="f", defaultValue="geojson") String formatType,
+			@RequestParam(value="where", defaultValue="") String where,
+			@RequestParam(value="geometry", defaultValue="") String geometry,
+			@RequestParam(value="geometryType", defaultValue="esriGeometryEnvelope") String geometryType,
+			@RequestParam(value="spatialRel", defaultValue="esriSpatialRelIntersects") String spatialRel,
+			@RequestParam(value="distance", defaultValue="0") double distance,
+			@RequestParam(value="units", defaultValue="esriSRUnit_Meter") String units,
+			@RequestParam(value="outFields", defaultValue="*") String outFields,
+			@RequestParam(value="inSR", defaultValue="") String inSR,
+			@RequestParam(value="outSR", defaultValue="28992") int outSR,
+			@RequestHeader(value="If-None-Match", required=false) String ifNoneMatch) {
+		
+		log.debug("Got an export request for layer {}", layerId);
+		
+		ExportFormat format = ExportFormat.fromFormatType(formatType);
+		if(format == null) {
+			log.warn(EXPORT_FORMAT_ERROR_MESSAGE);
+			return getStreamingResponse(new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(EXPORT_FORMAT_ERROR_MESSAGE), 
+					HttpStatus.BAD_REQUEST));
+		}
+		
+		SpatialFilter filter;
+		try {
+			filter = SpatialFilter.fromParameters(geometry, geometryType, inSR, spatialRel, distance, units);
+		} catch(IllegalArgumentException e) {
+			log.warn(e.getMessage());
+			return getStreamingResponse(new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(e.getMessage()), HttpStatus.BAD_REQUEST));
+		}
+		
+		String query = "export|" + format + "|" + where + "|" + filter + "|" + outFields + "|" + outSR;
+		HttpHeaders headers = getCacheHeaders(builder.getETag(Collections.singletonList(layerId), query));
+		if(isNotModified(headers, ifNoneMatch)) {
+			return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+		}
+		
+		AdmissionControl.Permit permit;
+		try {
+			permit = admissionControl.acquire(Collections.singletonList(layerId), true);
+		} catch(ServiceOverloadedException e) {
+			return getStreamingResponse(getOverloadedResponse(e));
+		}
+		
+		// The permit is released when the export is written
+		StreamingResponseBody body = (OutputStream out) -> {
+			try {
+				exportBuilder.writeExport(layerId, format, where, filter, outFields, outSR, out);
+			} finally {
+				permit.close();
+			}
+		};
+		
+		headers.setContentType(MediaType.parseMediaType(format.getContentType()));
+		headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"layer" + layerId + "." + format.getExtension() + "\"");
+		return new ResponseEntity<>(body, headers, HttpStatus.OK);
+	}
+	
+	/**
+	 * Forwards a query of a layer to the export of that layer, with the same parameters and headers.
+	 */
+	private static void forwardToExport(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String path = new UrlPathHelper().getPathWithinApplication(request);
+		request.getRequestDispatcher(path.substring(0, path.lastIndexOf('/')) + "/export").forward(request, response);
+	}
+	
+	/**
+	 * Creates the response for a query that was not admitted. Clients that send too many expensive queries get a 
+	 * 429, a saturated service returns a 503. Both tell the client when to try again.
+	 */
+	private ResponseEntity<Map<String, Object>> getOverloadedResponse(ServiceOverloadedException e) {
 		HttpHeaders headers = new HttpHeaders();
-		headers.setCacheControl("private, max-age=86400");
-		JsonParser parser = JsonParserFactory.getJsonParser();
-		return new ResponseEntity<>(parser.parseMap(retVal), headers, HttpStatus.OK);
+		headers.set(HttpHeaders.RETRY_AFTER, Integer.toString(e.getRetryAfter()));
+		HttpStatus status = e.isTooManyRequests() ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
+		return new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(e.getMessage()), headers, status);
+	}
+	
+	/**
+	 * The response for a query that failed in the database. The loader of the cache throws, so the error is not 
+	 * cached. An invalid where clause or value is an error of the request, other errors are errors of the service.
+	 */
+	private ResponseEntity<?> getQueryErrorResponse(DataAccessException e, String message) {
+		HttpStatus status = e instanceof BadSqlGrammarException || e instanceof DataIntegrityViolationException 
+				? HttpStatus.BAD_REQUEST : HttpStatus.INTERNAL_SERVER_ERROR;
+		return new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(message), status);
+	}
+	
+	/**
+	 * The response for a query that was stopped. The client of a cancelled query went away, so it only gets this 
+	 * response if the query timed out.
+	 */
+	private ResponseEntity<?> getCancelledResponse(QueryCancelledException e) {
+		return new ResponseEntity<>(ErrorMessageHandler.getErrorMessage(e.getMessage()), HttpStatus.SERVICE_UNAVAILABLE);
+	}
+	
+	/**
+	 * Converts an error response for the mappings that stream their result. Spring only writes a 
+	 * StreamingResponseBody if it is declared as the body type, so the error is streamed as well.
+	 */
+	private static ResponseEntity<StreamingResponseBody> getStreamingResponse(ResponseEntity<Map<String, Object>> response) {
+		byte[] json = new Gson().toJson(response.getBody()).getBytes(StandardCharsets.UTF_8);
+		
+		HttpHeaders headers = new HttpHeaders();
+		headers.putAll(response.getHeaders());
+		headers.setContentType(MediaType.APPLICATION_JSON_UTF8);
+		return new ResponseEntity<>((OutputStream out) -> out.write(json), headers, response.getStatusCode());
+	}
+	
+	/**
+	 * Waits for the result of a single layer of a FeatureServer query. If the query failed an error 
+	 * object is returned for that layer so the other layers can still be returned.
+	 */
+	/**
+	 * Cancels the layer queries that are still queued or running. A running query is stopped in the database by its 
+	 * cancellation, a queued query is not started.
+	 */
+	private static void cancelLayerQueries(List<CancellationToken> cancellations, List<Future<String>> results) {
+		for(CancellationToken cancellation : cancellations) {
+			cancellation.cancel();
+		}
+		for(Future<String> result : results) {
+			result.cancel(false);
+		}
+	}
+	
+	private String getLayerResult(LayerDefinition layerDefinition, Future<String> result) throws IOException {
+		try {
+			return result.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch(ExecutionException e) {
+			log.error(e.getMessage(), e);
+			JsonObject obj = new JsonObject();
+			obj.addProperty("id", layerDefinition.getLayerId());
+			obj.addProperty("error", String.format("Could not query layer %d", layerDefinition.getLayerId()));
+			return obj.toString();
+		}
+	}
+	
+	/**
+	 * The ETag already identifies the data version and the query, so it is used as the key in the shared cache.
+	 */
+	private static String getCacheKey(String eTag) {
+		return eTag.replace("\"", "");
+	}
+	
+	/**
+	 * Creates the caching headers for a query result. Clients may cache the result for cacheMaxAge seconds, 
+	 * after that they have to revalidate it with the ETag.
+	 * 
+	 * @param eTag - The ETag of the result, may be null if the data version is unknown
+	 */
+	private HttpHeaders getCacheHeaders(String eTag) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setCacheControl("private, max-age=" + cacheMaxAge + ", must-revalidate");
+		if(eTag != null) {
+			headers.setETag(eTag);
+		}
+		return headers;
+	}
+	
+	/**
+	 * Checks whether the If-None-Match header of the request matches the ETag of the current result.
+	 */
+	private boolean isNotModified(HttpHeaders headers, String ifNoneMatch) {
+		String eTag = headers.getETag();
+		if(eTag == null || ifNoneMatch == null) {
+			return false;
+		}
+		
+		for(String match : ifNoneMatch.split(",")) {
+			match = match.trim();
+			if(eTag.equals(match) || "*".equals(match)) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
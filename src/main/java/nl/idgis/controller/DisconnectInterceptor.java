@@ -0,0 +1,58 @@
+package nl.idgis.controller;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptorAdapter;
+
+/**
+ * Runs a callback when the client of an async request goes away. Whether the completion callbacks of a
+ * DeferredResult run for a failed connection depends on how the Spring version handles the errors of the async
+ * context, so the interceptor listens to the async context itself. The container reports a failed connection
+ * as an error, and a request that is closed before the result is set completes without result.
+ */
+class DisconnectInterceptor extends DeferredResultProcessingInterceptorAdapter {
+	
+	private final Runnable onDisconnect;
+	
+	/**
+	 * @param onDisconnect - Called when the client goes away, and when the request completes. It must do nothing
+	 * 		if the work of the request is already done.
+	 */
+	DisconnectInterceptor(Runnable onDisconnect) {
+		this.onDisconnect = onDisconnect;
+	}
+	
+	/**
+	 * Adds the listener once the async processing has started.
+	 */
+	@Override
+	public <T> void preProcess(NativeWebRequest request, DeferredResult<T> deferredResult) {
+		HttpServletRequest servletRequest = request.getNativeRequest(HttpServletRequest.class);
+		servletRequest.getAsyncContext().addListener(new AsyncListener() {
+			
+			@Override
+			public void onError(AsyncEvent event) {
+				onDisconnect.run();
+			}
+			
+			@Override
+			public void onComplete(AsyncEvent event) {
+				onDisconnect.run();
+			}
+			
+			@Override
+			public void onTimeout(AsyncEvent event) {
+				// The timeout of the DeferredResult stops the work
+			}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+				// The listener is only needed for this async cycle
+			}
+		});
+	}
+}
@@ -0,0 +1,139 @@
+package nl.idgis.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits the number of queries that run at the same time. Every query takes a global permit, expensive queries
+ * also take a permit of every queried layer and one of a smaller pool for expensive queries. The difference
+ * between the global pool and the expensive pool is reserved for cheap queries, so these are still admitted
+ * when heavy clients saturate the service. Queries wait a short time for a permit, after that or when too many
+ * queries are already waiting they are rejected.
+ */
+@Component
+public class AdmissionControl {
+	
+	private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+	
+	private final Semaphore global;
+	private final Semaphore expensive;
+	private final Map<Integer, Semaphore> layers = new ConcurrentHashMap<>();
+	private final AtomicInteger waiting = new AtomicInteger();
+	
+	private final int maxConcurrentPerLayer;
+	private final int maxWaiting;
+	private final long maxWait;
+	private final int expensiveRecordCount;
+	private final double expensiveArea;
+	private final int retryAfter;
+	
+	public AdmissionControl(
+			@Value("${admission.max-concurrent:20}") int maxConcurrent,
+			@Value("${admission.reserved-cheap:5}") int reservedCheap,
+			@Value("${admission.max-concurrent-per-layer:8}") int maxConcurrentPerLayer,
+			@Value("${admission.max-waiting:50}") int maxWaiting,
+			@Value("${admission.max-wait-ms:200}") long maxWait,
+			@Value("${admission.expensive-record-count:2000}") int expensiveRecordCount,
+			@Value("${admission.expensive-area:100000000}") double expensiveArea,
+			@Value("${admission.retry-after-seconds:2}") int retryAfter) {
+		this.global = new Semaphore(maxConcurrent);
+		this.expensive = new Semaphore(Math.max(1, maxConcurrent - reservedCheap));
+		this.maxConcurrentPerLayer = maxConcurrentPerLayer;
+		this.maxWaiting = maxWaiting;
+		this.maxWait = maxWait;
+		this.expensiveRecordCount = expensiveRecordCount;
+		this.expensiveArea = expensiveArea;
+		this.retryAfter = retryAfter;
+	}
+	
+	/**
+	 * Estimates whether a query is expensive. Only queries that return geometries for many records of a large area
+	 * are expensive. Statistics, counts, small pages, lookups of a few OBJECTIDs and the envelopes of zoomed in maps 
+	 * are cheap.
+	 *
+	 * @param returnGeometry - Whether the geometries are returned
+	 * @param recordCount - The maximum number of records fetched per layer
+	 * @param filter - The spatial filter, of which the envelope limits the area
+	 * @return True if the query is expensive
+	 */
+	public boolean isExpensive(boolean returnGeometry, int recordCount, SpatialFilter filter) {
+		return returnGeometry && recordCount > expensiveRecordCount && filter.getEnvelopeArea() > expensiveArea;
+	}
+	
+	/**
+	 * Waits for the permits to run a query on the given layers.
+	 *
+	 * @param layerIds - The queried layers
+	 * @param expensive - Whether the query is expensive
+	 * @throws ServiceOverloadedException If the permits could not be acquired in time
+	 * @return The permits, which must be closed when the query is done
+	 */
+	public Permit acquire(List<Integer> layerIds, boolean expensive) {
+		if(waiting.incrementAndGet() > maxWaiting) {
+			waiting.decrementAndGet();
+			log.warn("Too many queries waiting, rejecting query...");
+			throw new ServiceOverloadedException("The service is busy, try again later", false, retryAfter);
+		}
+		
+		Permit permit = new Permit();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+		try {
+			if(expensive) {
+				for(int layerId : new TreeSet<>(layerIds)) {
+					Semaphore layer = layers.computeIfAbsent(layerId, key -> new Semaphore(maxConcurrentPerLayer));
+					permit.acquire(layer, deadline, "Too many expensive queries for layer " + layerId + ", try again later", true);
+				}
+				permit.acquire(this.expensive, deadline, "Too many expensive queries, try again later", true);
+			}
+			permit.acquire(global, deadline, "The service is busy, try again later", false);
+			
+			return permit;
+		} catch(ServiceOverloadedException e) {
+			log.warn(e.getMessage());
+			permit.close();
+			throw e;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			permit.close();
+			throw new ServiceOverloadedException("The service is busy, try again later", false, retryAfter);
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * The permits held by a query. Closing releases all permits, closing more than once has no effect.
+	 */
+	public class Permit implements AutoCloseable {
+		
+		private final List<Semaphore> acquired = new ArrayList<>();
+		
+		private Permit() {}
+		
+		private void acquire(Semaphore semaphore, long deadline, String message, boolean tooManyRequests) throws InterruptedException {
+			if(!semaphore.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				throw new ServiceOverloadedException(message, tooManyRequests, retryAfter);
+			}
+			acquired.add(semaphore);
+		}
+		
+		@Override
+		public synchronized void close() {
+			for(Semaphore semaphore : acquired) {
+				semaphore.release();
+			}
+			acquired.clear();
+		}
+	}
+}
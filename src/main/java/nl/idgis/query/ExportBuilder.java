@@ -0,0 +1,177 @@
+package nl.idgis.query;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.JsonObject;
+
+import nl.idgis.CancellationToken;
+import nl.idgis.QueryCancelledException;
+import nl.idgis.QueryHandler;
+import nl.idgis.QueryTrace;
+import nl.idgis.SlowQueryLog;
+
+/**
+ * Writes the complete filtered layer as GeoJSON or CSV. The rows are written while they are read from the
+ * database, so an export of any size needs only the memory of one fetch and the write buffer.
+ */
+@Component
+public class ExportBuilder {
+	
+	private static final Logger log = LoggerFactory.getLogger(ExportBuilder.class);
+	
+	@Autowired
+	private QueryBuilder builder;
+	
+	@Autowired
+	private QueryHandler handler;
+	
+	@Autowired
+	private SlowQueryLog slowQueryLog;
+	
+	@Value("${query.export.fetch-size:1000}")
+	private int fetchSize;
+	
+	@Value("${query.export.buffer-size:65536}")
+	private int bufferSize;
+	
+	@Value("${query.export.timeout-ms:3600000}")
+	private long timeout;
+	
+	/**
+	 * Exports all features of the layer matching the where clause and geometry.
+	 *
+	 * @param layerId - The layer id
+	 * @param format - The export format
+	 * @param filter - The spatial filter
+	 * @param outFields - The comma separated fields to export, or *
+	 * @param out - The stream to write the export to, which is not closed
+	 * @throws IOException If writing fails or the query fails during the export
+	 */
+	public void writeExport(int layerId, ExportFormat format, String where, SpatialFilter filter, String outFields, int outSR,
+			OutputStream out) throws IOException {
+		QueryTrace trace = slowQueryLog.newTrace(layerId, new CancellationToken(timeout));
+		String dbUrl = builder.getDbUrl(layerId);
+		String[] layerFields = builder.getFieldsToGet(layerId, "*");
+		Projection projection = Projection.of(layerFields, outFields, true);
+		String[] fields = projection.getFields();
+		
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), bufferSize);
+		RowCallbackHandler rowWriter = format == ExportFormat.CSV ? getCsvWriter(writer, fields) : getGeoJsonWriter(writer, fields);
+		
+		try {
+			if(format == ExportFormat.CSV) {
+				writeCsvHeader(writer, fields);
+			} else {
+				writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+			}
+			
+			handler.streamDataFromTable(dbUrl, layerFields, where, filter, projection, outSR, format.getGeometryFunction(), fetchSize, 
+					rowWriter, trace);
+			
+			if(format == ExportFormat.GEOJSON) {
+				writer.write("]}");
+			}
+			writer.flush();
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		} catch(SQLException e) {
+			log.error(e.getMessage(), e);
+			throw new IOException("Export of layer " + layerId + " failed", e);
+		} catch(QueryCancelledException e) {
+			log.warn("Stopped the export of layer {} in stage {}: {}", layerId, e.getStage(), e.getMessage());
+			throw new IOException("Export of layer " + layerId + " stopped", e);
+		} finally {
+			slowQueryLog.record(trace);
+		}
+		
+		if(trace.isSampled()) {
+			log.debug(String.format("Exported %d rows in %s", trace.getRows(), trace.getStages()));
+		}
+	}
+	
+	private RowCallbackHandler getGeoJsonWriter(Writer writer, String[] fields) {
+		return new RowCallbackHandler() {
+			
+			private boolean first = true;
+			
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				JsonObject properties = new JsonObject();
+				for(String field : fields) {
+					properties.addProperty(field, rs.getString(field));
+				}
+				
+				String geoJson = rs.getString(Projection.GEOMETRY_COLUMN);
+				try {
+					if(!first) {
+						writer.write(',');
+					}
+					first = false;
+					
+					writer.write("{\"type\":\"Feature\",\"geometry\":");
+					writer.write(geoJson == null ? "null" : geoJson);
+					writer.write(",\"properties\":");
+					writer.write(properties.toString());
+					writer.write('}');
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+	
+	private RowCallbackHandler getCsvWriter(Writer writer, String[] fields) {
+		return (ResultSet rs) -> {
+			try {
+				for(String field : fields) {
+					writer.write(getCsvValue(rs.getString(field)));
+					writer.write(',');
+				}
+				writer.write(getCsvValue(rs.getString(Projection.GEOMETRY_COLUMN)));
+				writer.write("\r\n");
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		};
+	}
+	
+	/**
+	 * Writes the column names, the geometry is written last as WKT.
+	 */
+	private void writeCsvHeader(Writer writer, String[] fields) throws IOException {
+		for(String field : fields) {
+			writer.write(getCsvValue(field));
+			writer.write(',');
+		}
+		writer.write("WKT\r\n");
+	}
+	
+	/**
+	 * Quotes a value if it contains a separator, quote or line break, as in RFC 4180
+	 */
+	private static String getCsvValue(String value) {
+		if(value == null) {
+			return "";
+		}
+		if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			return value;
+		}
+		
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
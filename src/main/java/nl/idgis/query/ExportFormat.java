@@ -0,0 +1,49 @@
+package nl.idgis.query;
+
+/**
+ * The formats in which a complete layer can be exported.
+ */
+public enum ExportFormat {
+	
+	GEOJSON("application/geo+json;charset=UTF-8", "geojson", "ST_AsGeoJson"),
+	CSV("text/csv;charset=UTF-8", "csv", "ST_AsText");
+	
+	private final String contentType;
+	private final String extension;
+	private final String geometryFunction;
+	
+	ExportFormat(String contentType, String extension, String geometryFunction) {
+		this.contentType = contentType;
+		this.extension = extension;
+		this.geometryFunction = geometryFunction;
+	}
+	
+	/**
+	 * @param formatType - The f parameter
+	 * @return The export format, or null if the f parameter is not an export format
+	 */
+	public static ExportFormat fromFormatType(String formatType) {
+		for(ExportFormat format : values()) {
+			if(format.extension.equalsIgnoreCase(formatType)) {
+				return format;
+			}
+		}
+		
+		return null;
+	}
+	
+	public String getContentType() {
+		return contentType;
+	}
+	
+	public String getExtension() {
+		return extension;
+	}
+	
+	/**
+	 * @return The PostGIS function with which the geometries are encoded, GeoJSON for GeoJSON and WKT for CSV
+	 */
+	String getGeometryFunction() {
+		return geometryFunction;
+	}
+}
@@ -0,0 +1,194 @@
+package nl.idgis.query;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.JsonArray;
+
+import nl.idgis.CancellationToken;
+
+/**
+ * Encodes the rows from the database to the features of an ArcGIS query result. Large result sets are split
+ * into chunks that are encoded in parallel on a dedicated ForkJoinPool, small result sets are encoded on the
+ * calling thread so they never have to wait for the pool. The features are written by a FeatureWriter that is
+ * built once per layer and projection. The outFields of the requests determine the projections, so only the 
+ * writers of the query.encoding.writer-cache-size most recently used combinations are kept.
+ */
+@Component
+public class FeatureEncoder {
+	
+	@Autowired
+	@Qualifier("featureEncodingPool")
+	private ForkJoinPool featureEncodingPool;
+	
+	@Value("${query.encoding.parallel-threshold:2000}")
+	private int parallelThreshold;
+	
+	@Value("${query.encoding.chunk-size:500}")
+	private int chunkSize;
+	
+	private final Map<String, FeatureWriter> writers;
+	
+	public FeatureEncoder(@Value("${query.encoding.writer-cache-size:256}") int writerCacheSize) {
+		writers = Collections.synchronizedMap(new LinkedHashMap<String, FeatureWriter>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FeatureWriter> eldest) {
+				return size() > writerCacheSize;
+			}
+		});
+	}
+	
+	/**
+	 * Gets the writer for a layer and projection, which is built on first use.
+	 *
+	 * @param layerId - The layer id
+	 * @param projection - The fields and whether the geometries should be returned
+	 * @param fieldDefinitions - Gets the field definitions of the layer
+	 * @return The writer
+	 */
+	FeatureWriter getWriter(int layerId, Projection projection, Supplier<JsonArray> fieldDefinitions) {
+		String key = layerId + "|" + projection;
+		FeatureWriter writer = writers.get(key);
+		if(writer == null) {
+			// Built outside the lock, two requests may build the same writer
+			writer = new FeatureWriter(projection, fieldDefinitions.get());
+			writers.put(key, writer);
+		}
+		
+		return writer;
+	}
+	
+	/**
+	 * Gets all features for the given table as the comma separated content of a json array
+	 *
+	 * @param data - All the filtered data from the database
+	 * @param writer - The writer of the layer and projection
+	 * @param outSR - The spatial reference of the geometries
+	 * @param cancellation - Stops the encoding at the next chunk when the request is cancelled
+	 * @return
+	 * @throws nl.idgis.QueryCancelledException If the request is cancelled or past its deadline
+	 */
+	String getFeatures(Map<String, List<String>> data, FeatureWriter writer, int outSR, CancellationToken cancellation) {
+		List<String> objectIds = data.get("OBJECTID");
+		int numObjects = objectIds == null ? 0 : objectIds.size();
+		FeatureWriter.Rows rows = writer.bind(data);
+		
+		// A single chunk is not split, without features there is not even one
+		if(numObjects < parallelThreshold || numObjects <= chunkSize) {
+			return encodeChunk(rows, 0, numObjects, outSR, cancellation);
+		}
+		
+		String[] segments = new String[(numObjects + chunkSize - 1) / chunkSize];
+		featureEncodingPool.invoke(new EncodeTask(rows, outSR, cancellation, segments, 0, segments.length, numObjects));
+		
+		StringBuilder builder = new StringBuilder();
+		for(int i = 0; i < segments.length; i++) {
+			if(i > 0) {
+				builder.append(',');
+			}
+			builder.append(segments[i]);
+		}
+		
+		return builder.toString();
+	}
+	
+	/**
+	 * Encodes the features per OBJECTID. The features of an OBJECTID are separated by comma's.
+	 *
+	 * @param data - All the filtered data from the database, including the OBJECTID column
+	 * @param writer - The writer of the layer and projection
+	 * @param outSR - The spatial reference of the geometries
+	 * @return The encoded features by OBJECTID
+	 */
+	Map<Integer, String> getFeaturesByObjectId(Map<String, List<String>> data, FeatureWriter writer, int outSR) {
+		List<String> objectIds = data.get("OBJECTID");
+		FeatureWriter.Rows rows = writer.bind(data);
+		Map<Integer, StringBuilder> builders = new LinkedHashMap<>();
+		for(int i = 0; objectIds != null && i < objectIds.size(); i++) {
+			StringBuilder builder = builders.computeIfAbsent(Integer.valueOf(objectIds.get(i)), id -> new StringBuilder());
+			if(builder.length() > 0) {
+				builder.append(',');
+			}
+			rows.write(builder, i, outSR);
+		}
+		
+		Map<Integer, String> features = new LinkedHashMap<>();
+		for(Map.Entry<Integer, StringBuilder> entry : builders.entrySet()) {
+			features.put(entry.getKey(), entry.getValue().toString());
+		}
+		
+		return features;
+	}
+	
+	/**
+	 * Encodes the features from index start (inclusive) to end (exclusive) separated by comma's. The cancellation 
+	 * is checked every chunkSize features.
+	 */
+	private String encodeChunk(FeatureWriter.Rows rows, int start, int end, int outSR, CancellationToken cancellation) {
+		StringBuilder builder = new StringBuilder();
+		for(int i = start; i < end; i++) {
+			if((i - start) % chunkSize == 0) {
+				cancellation.check("encode");
+			}
+			if(i > start) {
+				builder.append(',');
+			}
+			rows.write(builder, i, outSR);
+		}
+		
+		return builder.toString();
+	}
+	
+	/**
+	 * Splits the chunks in halves until a single chunk remains, which is then encoded into its own segment.
+	 */
+	private class EncodeTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final transient FeatureWriter.Rows rows;
+		private final int outSR;
+		private final transient CancellationToken cancellation;
+		private final String[] segments;
+		private final int firstChunk;
+		private final int lastChunk;
+		private final int numObjects;
+		
+		EncodeTask(FeatureWriter.Rows rows, int outSR, CancellationToken cancellation, String[] segments, int firstChunk, 
+				int lastChunk, int numObjects) {
+			this.rows = rows;
+			this.outSR = outSR;
+			this.cancellation = cancellation;
+			this.segments = segments;
+			this.firstChunk = firstChunk;
+			this.lastChunk = lastChunk;
+			this.numObjects = numObjects;
+		}
+		
+		@Override
+		protected void compute() {
+			if(lastChunk - firstChunk == 1) {
+				int start = firstChunk * chunkSize;
+				int end = Math.min(start + chunkSize, numObjects);
+				segments[firstChunk] = encodeChunk(rows, start, end, outSR, cancellation);
+				return;
+			}
+			
+			int middle = (firstChunk + lastChunk) >>> 1;
+			invokeAll(new EncodeTask(rows, outSR, cancellation, segments, firstChunk, middle, numObjects),
+					new EncodeTask(rows, outSR, cancellation, segments, middle, lastChunk, numObjects));
+		}
+	}
+}
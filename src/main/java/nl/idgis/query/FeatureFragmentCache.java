@@ -0,0 +1,53 @@
+package nl.idgis.query;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * LRU cache of the encoded features per OBJECTID. A fragment holds the comma separated json of all features of
+ * one OBJECTID, as a multipart geometry is returned as one feature per part. The key contains the data version
+ * of the layer, so fragments of old data are never used again and are removed as the least recently used.
+ */
+@Component
+public class FeatureFragmentCache {
+	
+	private final Map<String, String> fragments;
+	
+	public FeatureFragmentCache(@Value("${query.fragment-cache.max-entries:20000}") int maxEntries) {
+		fragments = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > maxEntries;
+			}
+		});
+	}
+	
+	/**
+	 * Creates the key of a fragment. Everything that changes the encoded features is part of the key.
+	 *
+	 * @param version - The data version of the layer
+	 * @param maxAllowableOffset - The generalization level
+	 * @param outSR - The spatial reference of the geometries
+	 */
+	public static String getKey(int layerId, String version, int objectId, String maxAllowableOffset, int outSR,
+			boolean returnGeometry, String outFields) {
+		return layerId + "|" + version + "|" + objectId + "|" + maxAllowableOffset + "|" + outSR + "|" + returnGeometry + "|" + outFields;
+	}
+	
+	/**
+	 * @return The fragment or null
+	 */
+	public String get(String key) {
+		return fragments.get(key);
+	}
+	
+	public void put(String key, String fragment) {
+		fragments.put(key, fragment);
+	}
+}
@@ -0,0 +1,232 @@
+package nl.idgis.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.esri.terraformer.core.Terraformer;
+import com.esri.terraformer.core.TerraformerException;
+import com.esri.terraformer.formats.EsriJson;
+import com.esri.terraformer.formats.GeoJson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Writes the features of one layer and projection as json. The writer is built once per combination: the field
+ * names are encoded in advance together with the separators in front of them, and every field gets the writer
+ * for its type. Writing a feature then only appends to the builder, without a JsonObject per feature.
+ */
+class FeatureWriter {
+	
+	private static final Logger log = LoggerFactory.getLogger(FeatureWriter.class);
+	
+	private static final String ATTRIBUTES = "{\"attributes\":{";
+	
+	private final Projection projection;
+	private final String[] fields;
+	private final String[] prefixes;
+	private final ValueWriter[] writers;
+	
+	/**
+	 * @param projection - The fields and whether the geometry is written
+	 * @param fieldDefinitions - The field definitions of the layer, with the name and type of every field
+	 */
+	FeatureWriter(Projection projection, JsonArray fieldDefinitions) {
+		this.projection = projection;
+		fields = projection.getFields();
+		prefixes = new String[fields.length];
+		writers = new ValueWriter[fields.length];
+		
+		StringBuilder builder = new StringBuilder();
+		for(int i = 0; i < fields.length; i++) {
+			builder.setLength(0);
+			builder.append(i == 0 ? ATTRIBUTES : ",");
+			writeString(builder, fields[i]);
+			builder.append(':');
+			prefixes[i] = builder.toString();
+			writers[i] = isInteger(fields[i], fieldDefinitions) ? FeatureWriter::writeInteger : FeatureWriter::writeString;
+		}
+	}
+	
+	/**
+	 * OBJECTID is not in the field definitions of all layers, but it is always an integer.
+	 */
+	private static boolean isInteger(String field, JsonArray fieldDefinitions) {
+		if("OBJECTID".equals(field)) {
+			return true;
+		}
+		
+		for(JsonElement element : fieldDefinitions) {
+			JsonObject fieldDefinition = element.getAsJsonObject();
+			if(field.equals(fieldDefinition.get("name").getAsString())) {
+				String type = fieldDefinition.get("type").getAsString();
+				return "esriFieldTypeOID".equals(type) || "esriFieldTypeInteger".equals(type)
+						|| "esriFieldTypeSmallInteger".equals(type);
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Looks up the columns of a query result, so the rows can be written without looking up the columns again.
+	 *
+	 * @param data - The data per column from the database
+	 * @return The rows of the result
+	 */
+	Rows bind(Map<String, List<String>> data) {
+		return new Rows(data);
+	}
+	
+	class Rows {
+		
+		private final List<List<String>> values;
+		private final List<String> geoJsons;
+		private final List<String> clipped;
+		
+		private Rows(Map<String, List<String>> data) {
+			values = new ArrayList<>(fields.length);
+			for(String field : fields) {
+				values.add(data.get(field));
+			}
+			geoJsons = data.get(Projection.GEOMETRY_COLUMN);
+			clipped = data.get(Projection.CLIPPED_COLUMN);
+		}
+		
+		/**
+		 * Writes the feature in row index. The geometry is only converted if it is written.
+		 *
+		 * @param builder - The builder to append the feature to
+		 * @param index - The row number
+		 * @param outSR - The spatial reference of the geometry
+		 */
+		void write(StringBuilder builder, int index, int outSR) {
+			if(fields.length == 0) {
+				builder.append(ATTRIBUTES);
+			}
+			for(int i = 0; i < fields.length; i++) {
+				builder.append(prefixes[i]);
+				writers[i].write(builder, values.get(i).get(index));
+			}
+			builder.append('}');
+			
+			if(projection.hasGeometry()) {
+				String esriJson = getEsriJson(geoJsons.get(index), outSR);
+				builder.append(",\"geometry\":");
+				builder.append("".equals(esriJson) ? "null" : esriJson);
+			}
+			if(projection.isClipped() && "t".equals(clipped.get(index))) {
+				builder.append(",\"clipped\":true");
+			}
+			builder.append('}');
+		}
+	}
+	
+	@FunctionalInterface
+	private interface ValueWriter {
+		void write(StringBuilder builder, String value);
+	}
+	
+	/**
+	 * Writes an integer as a number. Values that are not an integer are written as a string.
+	 */
+	private static void writeInteger(StringBuilder builder, String value) {
+		if(value == null) {
+			builder.append("null");
+			return;
+		}
+		
+		int start = value.startsWith("-") ? 1 : 0;
+		boolean integer = value.length() > start && value.length() - start <= 18;
+		for(int i = start; integer && i < value.length(); i++) {
+			integer = value.charAt(i) >= '0' && value.charAt(i) <= '9';
+		}
+		// A json number has no leading zeros
+		integer = integer && (value.length() - start == 1 || value.charAt(start) != '0');
+		
+		if(integer) {
+			builder.append(value);
+		} else {
+			writeString(builder, value);
+		}
+	}
+	
+	/**
+	 * Writes a json string, escaping quotes, backslashes and control characters the way Gson does, so the strings 
+	 * are written as before the writer.
+	 */
+	private static void writeString(StringBuilder builder, String value) {
+		if(value == null) {
+			builder.append("null");
+			return;
+		}
+		
+		builder.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch(c) {
+			case '"':
+				builder.append("\\\"");
+				break;
+			case '\\':
+				builder.append("\\\\");
+				break;
+			case '\n':
+				builder.append("\\n");
+				break;
+			case '\r':
+				builder.append("\\r");
+				break;
+			case '\t':
+				builder.append("\\t");
+				break;
+			case '\b':
+				builder.append("\\b");
+				break;
+			case '\f':
+				builder.append("\\f");
+				break;
+			default:
+				if(c < 0x20 || c == '\u2028' || c == '\u2029') {
+					builder.append(String.format("\\u%04x", (int) c));
+				} else {
+					builder.append(c);
+				}
+			}
+		}
+		builder.append('"');
+	}
+	
+	/**
+	 * Converts the GeoJson String to an EsriJson String
+	 *
+	 * @param geoJson - The GeoJson String
+	 * @param outSR - The spatial reference of the geometry
+	 * @return The EsriJson, or an empty String if the geometry can't be converted
+	 */
+	private static String getEsriJson(String geoJson, int outSR) {
+		if(geoJson == null) {
+			return "";
+		}
+		
+		Terraformer t = new Terraformer();
+		
+		t.setDecoder(new GeoJson());
+		EsriJson ej = new EsriJson();
+		ej.setSpatialReference(outSR);
+		t.setEncoder(ej);
+		
+		String esriJson = "";
+		try {
+			esriJson = t.convert(geoJson);
+		} catch(TerraformerException e) {
+			log.error(e.getMessage(), e);
+		}
+		
+		return esriJson;
+	}
+}
@@ -0,0 +1,30 @@
+package nl.idgis.query;
+
+/**
+ * A single entry of the layerDefs parameter of a FeatureServer query. Holds the layer to query together
+ * with the where clause and outFields that only apply to that layer.
+ */
+public class LayerDefinition {
+
+	private final int layerId;
+	private final String where;
+	private final String outFields;
+
+	public LayerDefinition(int layerId, String where, String outFields) {
+		this.layerId = layerId;
+		this.where = where;
+		this.outFields = outFields;
+	}
+
+	public int getLayerId() {
+		return layerId;
+	}
+
+	public String getWhere() {
+		return where;
+	}
+
+	public String getOutFields() {
+		return outFields;
+	}
+}
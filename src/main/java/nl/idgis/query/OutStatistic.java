@@ -0,0 +1,87 @@
+package nl.idgis.query;
+
+import java.util.Locale;
+
+/**
+ * A single statistic of the outStatistics parameter, e.g. {"statisticType":"count","onStatisticField":"OBJECTID",
+ * "outStatisticFieldName":"cnt"}. The statistic is computed by PostGIS with the matching aggregate function.
+ */
+public class OutStatistic {
+	
+	private final String statisticType;
+	private final String onStatisticField;
+	private final String outStatisticFieldName;
+	
+	public OutStatistic(String statisticType, String onStatisticField, String outStatisticFieldName) {
+		this.statisticType = statisticType.toLowerCase(Locale.ROOT);
+		this.onStatisticField = onStatisticField;
+		this.outStatisticFieldName = outStatisticFieldName;
+	}
+	
+	public String getStatisticType() {
+		return statisticType;
+	}
+	
+	public String getOnStatisticField() {
+		return onStatisticField;
+	}
+	
+	public String getOutStatisticFieldName() {
+		return outStatisticFieldName;
+	}
+	
+	/**
+	 * Gets the esri field type of the statistic. A count is always an integer, the minimum and maximum have the 
+	 * type of the field itself and the other statistics are returned as doubles. A layer has only one object id 
+	 * field, so the minimum and maximum of the object id are integers.
+	 *
+	 * @param fieldType - The esri field type of onStatisticField
+	 */
+	public String getFieldType(String fieldType) {
+		switch(statisticType) {
+		case "count":
+			return "esriFieldTypeInteger";
+		case "min":
+		case "max":
+			return "esriFieldTypeOID".equals(fieldType) ? "esriFieldTypeInteger" : fieldType;
+		default:
+			return "esriFieldTypeDouble";
+		}
+	}
+	
+	/**
+	 * Gets the aggregate expression for this statistic. The field names must be validated before calling this.
+	 *
+	 * @return The SQL expression or null if the statistic type is not supported
+	 */
+	public String getSqlExpression() {
+		String function;
+		switch(statisticType) {
+		case "count":
+			function = "COUNT";
+			break;
+		case "sum":
+			function = "SUM";
+			break;
+		case "min":
+			function = "MIN";
+			break;
+		case "max":
+			function = "MAX";
+			break;
+		case "avg":
+			function = "AVG";
+			break;
+		case "stddev":
+			function = "STDDEV_SAMP";
+			break;
+		case "var":
+			function = "VAR_SAMP";
+			break;
+		default:
+			return null;
+		}
+		
+		return function + "(\"" + onStatisticField + "\") AS \"" + outStatisticFieldName + "\"";
+	}
+}
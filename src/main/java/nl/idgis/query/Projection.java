@@ -0,0 +1,139 @@
+package nl.idgis.query;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The columns a query returns: the requested attribute fields and whether the geometry is returned. Only these
+ * columns are selected from the database and encoded. OBJECTID is always selected, as it identifies the rows.
+ */
+public class Projection {
+	
+	public static final String GEOMETRY_COLUMN = "geoJsons";
+	public static final String CLIPPED_COLUMN = "clipped";
+	private static final String OBJECTID = "OBJECTID";
+	
+	private final String[] fields;
+	private final boolean geometry;
+	private final double clipPadding;
+	
+	private Projection(String[] fields, boolean geometry, double clipPadding) {
+		this.fields = fields;
+		this.geometry = geometry;
+		this.clipPadding = clipPadding;
+	}
+	
+	/**
+	 * Creates the projection from the query parameters. The shape field is ignored in the outFields, the geometry
+	 * is only returned with returnGeometry.
+	 *
+	 * @param layerFields - All fields of the layer
+	 * @param outFields - The comma separated fields to return, or * for all fields
+	 * @param returnGeometry - Whether the geometry is returned
+	 * @return The projection
+	 * @throws IllegalArgumentException If a field does not exist
+	 */
+	public static Projection of(String[] layerFields, String outFields, boolean returnGeometry) {
+		Set<String> fields = new LinkedHashSet<>();
+		if("*".equals(outFields.trim())) {
+			for(String field : layerFields) {
+				fields.add(field);
+			}
+		} else if(!"".equals(outFields.trim())) {
+			for(String field : outFields.split(",")) {
+				field = field.trim();
+				if("SHAPE".equalsIgnoreCase(field) || GEOMETRY_COLUMN.equals(field)) {
+					continue;
+				}
+				if(!contains(layerFields, field)) {
+					throw new IllegalArgumentException(String.format("Field %s does not exist", field));
+				}
+				fields.add(field);
+			}
+		}
+		fields.remove(GEOMETRY_COLUMN);
+		
+		return new Projection(fields.toArray(new String[fields.size()]), returnGeometry, -1);
+	}
+	
+	/**
+	 * Creates a copy of the projection of which the geometries are clipped to the envelope of the spatial 
+	 * filter. Whether a geometry was clipped is returned in the clipped column.
+	 *
+	 * @param padding - The fraction of the width and height of the envelope that is added on every side
+	 * @return The projection with clipped geometries
+	 */
+	public Projection clipped(double padding) {
+		return new Projection(fields, geometry, padding);
+	}
+	
+	private static boolean contains(String[] layerFields, String field) {
+		for(String layerField : layerFields) {
+			if(layerField.equals(field)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @return The attribute fields to return
+	 */
+	public String[] getFields() {
+		return fields;
+	}
+	
+	public boolean hasGeometry() {
+		return geometry;
+	}
+	
+	public boolean isClipped() {
+		return geometry && clipPadding >= 0;
+	}
+	
+	public double getClipPadding() {
+		return clipPadding;
+	}
+	
+	/**
+	 * @return The attribute columns to select, the fields and OBJECTID
+	 */
+	public String[] getColumns() {
+		if(contains(fields, OBJECTID)) {
+			return fields;
+		}
+		
+		String[] columns = new String[fields.length + 1];
+		columns[0] = OBJECTID;
+		System.arraycopy(fields, 0, columns, 1, fields.length);
+		return columns;
+	}
+	
+	/**
+	 * @param alias - The alias of the table, or null
+	 * @return The quoted attribute columns, comma separated
+	 */
+	public String getSelectList(String alias) {
+		StringBuilder builder = new StringBuilder();
+		for(String column : getColumns()) {
+			if(builder.length() > 0) {
+				builder.append(", ");
+			}
+			if(alias != null) {
+				builder.append(alias + ".");
+			}
+			builder.append("\"" + column + "\"");
+		}
+		
+		return builder.toString();
+	}
+	
+	/**
+	 * The normalized projection, used in cache keys.
+	 */
+	@Override
+	public String toString() {
+		return String.join(",", fields) + "|" + geometry + (isClipped() ? "|" + clipPadding : "");
+	}
+}
@@ -1,23 +1,38 @@
 package nl.idgis.query;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import com.esri.terraformer.core.Terraformer;
-import com.esri.terraformer.core.TerraformerException;
-import com.esri.terraformer.formats.EsriJson;
-import com.esri.terraformer.formats.GeoJson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
+import nl.idgis.CancellationToken;
+import nl.idgis.DataVersionHandler;
 import nl.idgis.QueryHandler;
+import nl.idgis.QueryTrace;
+import nl.idgis.SlowQueryLog;
 
 @Component
 public class QueryBuilder {
@@ -31,33 +46,218 @@ public class QueryBuilder {
 	private static final String[] boomkikkersFields = {"OBJECTID", "OMS", "NR", "geoJsons"};
 	private static final String[] onderwijsFields = {"OBJECTID", "VESTNAAM", "STRAATNAAM", "HUISNR_TOE", "POSTCODE", "PLAATSNAAM", "GEMEENTENA", "TELEFOONNU", "HOOFDTYPE", "ONDWGEBI_1", "COROP_NAAM", "WGR_NAAM", "geoJsons"};
 	
+	private static final int[] LAYER_IDS = {0, 1, 2};
+	private static final String LAYER_DEFS_ERROR_MESSAGE = "'layerDefs' parameter is invalid";
+	public static final int MAX_RECORD_COUNT = 8000;
+	
 	private static final Logger log = LoggerFactory.getLogger(QueryBuilder.class);
 	
 	@Autowired 
 	private QueryHandler handler;
+	
+	@Autowired
+	private DataVersionHandler versionHandler;
+	
+	@Autowired
+	private SlowQueryLog slowQueryLog;
+	
+	@Autowired
+	private FeatureEncoder encoder;
+	
+	@Autowired
+	private FeatureFragmentCache fragmentCache;
+	
+	@Value("${query.fragment-cache.envelope-queries:false}")
+	private boolean fragmentEnvelopeQueries;
+	
+	@Value("${query.clip.layers:}")
+	private String clipLayers;
+	
+	@Value("${query.clip.padding:0.1}")
+	private double clipPadding;
+	
+	@Autowired
+	@Qualifier("layerQueryExecutor")
+	private ExecutorService layerQueryExecutor;
 
 	/**
 	 * Builds the json to return to ArcGIS so the results can be displayed on the map.
 	 * 
 	 * @param layerId - The layer number
+	 * @param objectIds - The comma separated OBJECTIDs of the features to return, or empty for all features
+	 * @param clip - Whether to clip the geometries to the envelope, or null to clip the layers in query.clip.layers
+	 * @param cancellation - The deadline and cancellation of the request
 	 * @return
+	 * @throws nl.idgis.QueryCancelledException If the request is cancelled or past its deadline
+	 */
+	public String getJsonQueryResult(int layerId, String where, boolean returnGeometry, String maxAllowableOffset, SpatialFilter filter, 
+			String objectIds, String outFields, int outSR, int resultOffset, int resultRecordCount, Boolean clip, 
+			CancellationToken cancellation) {
+		return getQueryResult(layerId, where, returnGeometry, maxAllowableOffset, filter, getObjectIds(objectIds), outFields, outSR, 
+				resultOffset, resultRecordCount, clip, false, cancellation);
+	}
+	
+	/**
+	 * Starts the query of one layer of a FeatureServer query, so the layers are queried in parallel. The future 
+	 * resolves to the json of the layer including its id. The permit of the layer is released when its query is 
+	 * done, or when the future is cancelled before the query started.
+	 * 
+	 * @param layerDefinition - The layer to query
+	 * @param permit - The admission of the query of this layer
+	 * @param cancellation - The deadline and cancellation of the query of this layer
+	 * @return The pending result of the layer
+	 */
+	public Future<String> submitLayerQuery(LayerDefinition layerDefinition, boolean returnGeometry, String maxAllowableOffset, 
+			SpatialFilter filter, int outSR, AdmissionControl.Permit permit, CancellationToken cancellation) {
+		AtomicBoolean started = new AtomicBoolean();
+		FutureTask<String> result = new FutureTask<String>(() -> {
+			started.set(true);
+			try {
+				return getQueryResult(layerDefinition.getLayerId(), layerDefinition.getWhere(), returnGeometry, maxAllowableOffset, 
+						filter, null, layerDefinition.getOutFields(), outSR, 0, MAX_RECORD_COUNT, null, true, cancellation);
+			} finally {
+				permit.close();
+			}
+		}) {
+			@Override
+			protected void done() {
+				// A query that never started doesn't release its permit itself
+				if(isCancelled() && !started.get()) {
+					permit.close();
+				}
+			}
+		};
+		layerQueryExecutor.execute(result);
+		
+		return result;
+	}
+	
+	/**
+	 * Parses the layerDefs parameter of a FeatureServer query. Both the object form {"0":"where"} and the array 
+	 * form [{"layerId":0,"where":"...","outFields":"*"}] are supported. Without layerDefs all layers are queried.
+	 * 
+	 * @param layerDefs - The layerDefs parameter
+	 * @return The layers to query
+	 * @throws IllegalArgumentException If the layerDefs are malformed or name a layer that does not exist
+	 */
+	public List<LayerDefinition> getLayerDefinitions(String layerDefs) {
+		List<LayerDefinition> layerDefinitions = new ArrayList<>();
+		
+		if("".equals(layerDefs.trim())) {
+			for(int layerId : LAYER_IDS) {
+				layerDefinitions.add(new LayerDefinition(layerId, "", "*"));
+			}
+			return layerDefinitions;
+		}
+		
+		try {
+			JsonParser parser = new JsonParser();
+			JsonElement element = parser.parse(layerDefs);
+			
+			if(element.isJsonArray()) {
+				for(JsonElement layerDef : element.getAsJsonArray()) {
+					JsonObject obj = layerDef.getAsJsonObject();
+					if(!obj.has("layerId")) {
+						throw new IllegalArgumentException(LAYER_DEFS_ERROR_MESSAGE);
+					}
+					int layerId = obj.get("layerId").getAsInt();
+					String where = obj.has("where") ? obj.get("where").getAsString() : "";
+					String outFields = obj.has("outFields") ? obj.get("outFields").getAsString() : "*";
+					layerDefinitions.add(new LayerDefinition(layerId, where, outFields));
+				}
+			} else {
+				for(Map.Entry<String, JsonElement> layerDef : element.getAsJsonObject().entrySet()) {
+					layerDefinitions.add(new LayerDefinition(Integer.parseInt(layerDef.getKey()), layerDef.getValue().getAsString(), "*"));
+				}
+			}
+		} catch(JsonParseException | IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+			throw new IllegalArgumentException(LAYER_DEFS_ERROR_MESSAGE);
+		}
+		
+		for(LayerDefinition layerDefinition : layerDefinitions) {
+			if(getDbUrl(layerDefinition.getLayerId()) == null) {
+				throw new IllegalArgumentException(String.format("Layer %d does not exist", layerDefinition.getLayerId()));
+			}
+		}
+		
+		return layerDefinitions;
+	}
+	
+	/**
+	 * Creates a strong ETag for a query from the data versions of the queried layers and the query parameters. 
+	 * The ETag only changes when the data in one of the layers changes or when different parameters are used.
+	 * 
+	 * @param layerIds - The queried layers
+	 * @param query - The normalized query parameters
+	 * @return The ETag or null if the data version of a layer is unknown
+	 */
+	public String getETag(List<Integer> layerIds, String query) {
+		StringBuilder builder = new StringBuilder();
+		for(int layerId : layerIds) {
+			String dbUrl = getDbUrl(layerId);
+			String version = dbUrl == null ? null : versionHandler.getDataVersion(dbUrl);
+			if(version == null) {
+				return null;
+			}
+			builder.append(layerId + ":" + version + ";");
+		}
+		builder.append(query);
+		
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(builder.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder eTag = new StringBuilder("\"");
+			for(int i = 0; i < 16; i++) {
+				eTag.append(String.format("%02x", hash[i]));
+			}
+			return eTag.append("\"").toString();
+		} catch(NoSuchAlgorithmException e) {
+			log.error(e.getMessage(), e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Builds the json for a single layer. The features are encoded separately and appended to the layer 
+	 * properties, so they don't have to go through a JsonObject. Only the columns of the projection are read and 
+	 * encoded.
+	 * 
+	 * @param clip - Whether to clip the geometries to the envelope, or null to clip the layers in query.clip.layers
+	 * @param includeLayerId - Whether to add the layer id, as needed in a FeatureServer query
 	 */
-	public String getJsonQueryResult(int layerId, String where, boolean returnGeometry, String maxAllowableOffset, String geometry, 
-			String outFields, int outSR, int resultOffset, int resultRecordCount) {
-		log.debug("Generating data...");
+	private String getQueryResult(int layerId, String where, boolean returnGeometry, String maxAllowableOffset, SpatialFilter filter, 
+			List<Integer> objectIds, String outFields, int outSR, int resultOffset, int resultRecordCount, Boolean clip, 
+			boolean includeLayerId, CancellationToken cancellation) {
+		QueryTrace trace = slowQueryLog.newTrace(layerId, cancellation);
 		String dbUrl = getDbUrl(layerId);
-		String[] fields = getFieldsToGet(layerId, outFields);
+		String[] layerFields = getFieldsToGet(layerId, "*");
+		Projection projection = Projection.of(layerFields, outFields, returnGeometry);
 		
-		log.debug("Fields to filter: ");
-		for(String field : fields) {
-			log.debug(field);
+		if(trace.isSampled()) {
+			log.debug("Generating data...");
+			log.debug("Projection: " + projection);
 		}
 		
-		double[] extent = getExtentFromGeometry(geometry);
-		Map<String, List<String>> data = handler.getDataFromTable(layerId, dbUrl, fields, where, extent, outFields, outSR, resultOffset, resultRecordCount, maxAllowableOffset);
+		String features;
+		if(objectIds != null || fragmentEnvelopeQueries && !filter.isEmpty()) {
+			features = getFeaturesFromFragments(layerId, dbUrl, layerFields, where, filter, objectIds, projection, maxAllowableOffset, 
+					outSR, resultOffset, resultRecordCount, trace);
+		} else {
+			// The cached fragments hold whole features, so only the geometries queried here are clipped
+			if(isClipped(layerId, clip) && filter.isClippable()) {
+				projection = projection.clipped(clipPadding);
+			}
+			Map<String, List<String>> data = handler.getDataFromTable(layerId, dbUrl, layerFields, where, filter, null, projection, outSR, 
+					resultOffset, resultRecordCount, maxAllowableOffset, trace);
+			FeatureWriter writer = encoder.getWriter(layerId, projection, () -> getFields(layerId));
+			features = encoder.getFeatures(data, writer, outSR, cancellation);
+		}
 		
 		JsonObject obj = new JsonObject();
 		
+		if(includeLayerId) {
+			obj.addProperty("id", layerId);
+		}
 		obj.addProperty("objectIdFieldName", "OBJECTID");
 		obj.addProperty("globalIdFieldName", "");
 		if(layerId == 2) {
@@ -65,11 +265,130 @@ public class QueryBuilder {
 		} else {
 			obj.addProperty("geometryType", "esriGeometryPolygon");
 		}
-		obj.add("spatialReference", getSpatialReference());
+		obj.add("spatialReference", SpatialReferences.getSpatialReference(outSR));
 		obj.add("fields", getFields(layerId));
-		obj.add("features", getFeatures(data, returnGeometry, fields));
 		
-		return obj.toString();
+		String layer = obj.toString();
+		StringBuilder builder = new StringBuilder();
+		builder.append(layer, 0, layer.length() - 1);
+		builder.append(",\"features\":[");
+		builder.append(features);
+		builder.append("]}");
+		
+		trace.stage("encode");
+		slowQueryLog.record(trace);
+		if(trace.isSampled()) {
+			log.debug(String.format("Encoded %d results in %s", trace.getRows(), trace.getStages()));
+		}
+		
+		return builder.toString();
+	}
+	
+	/**
+	 * Gets the features of a query by their OBJECTIDs from the fragment cache. The OBJECTIDs are looked up first 
+	 * if there is a where clause or spatial filter, the features that are not cached are then queried at once. 
+	 * Multipart features are returned whole and the paging counts features instead of parts.
+	 * 
+	 * @param objectIds - The requested OBJECTIDs, or null
+	 * @return The comma separated features
+	 */
+	private String getFeaturesFromFragments(int layerId, String dbUrl, String[] layerFields, String where, SpatialFilter filter, 
+			List<Integer> objectIds, Projection projection, String maxAllowableOffset, int outSR, int resultOffset, 
+			int resultRecordCount, QueryTrace trace) {
+		List<Integer> ids;
+		if(objectIds != null && "".equals(where) && filter.isEmpty()) {
+			int end = (int) Math.min((long) resultOffset + resultRecordCount, objectIds.size());
+			ids = resultOffset < end ? objectIds.subList(resultOffset, end) : Collections.<Integer>emptyList();
+		} else {
+			ids = handler.getObjectIds(dbUrl, layerFields, where, filter, objectIds == null ? null : objectIds.toArray(new Integer[0]), 
+					resultOffset, resultRecordCount, trace);
+		}
+		
+		String version = versionHandler.getDataVersion(dbUrl);
+		String outFields = String.join(",", projection.getFields());
+		boolean returnGeometry = projection.hasGeometry();
+		Map<Integer, String> fragments = new HashMap<>();
+		List<Integer> misses = new ArrayList<>();
+		for(int id : ids) {
+			String fragment = version == null ? null 
+					: fragmentCache.get(FeatureFragmentCache.getKey(layerId, version, id, maxAllowableOffset, outSR, returnGeometry, outFields));
+			if(fragment == null) {
+				misses.add(id);
+			} else {
+				fragments.put(id, fragment);
+			}
+		}
+		
+		if(!misses.isEmpty()) {
+			Map<String, List<String>> data = handler.getDataFromTable(layerId, dbUrl, layerFields, "", SpatialFilter.NONE, 
+					misses.toArray(new Integer[0]), projection, outSR, 0, -1, maxAllowableOffset, trace);
+			FeatureWriter writer = encoder.getWriter(layerId, projection, () -> getFields(layerId));
+			for(Map.Entry<Integer, String> fragment : encoder.getFeaturesByObjectId(data, writer, outSR).entrySet()) {
+				fragments.put(fragment.getKey(), fragment.getValue());
+				if(version != null) {
+					fragmentCache.put(FeatureFragmentCache.getKey(layerId, version, fragment.getKey(), maxAllowableOffset, outSR, 
+							returnGeometry, outFields), fragment.getValue());
+				}
+			}
+		}
+		
+		if(trace.isSampled()) {
+			log.debug(String.format("Got %d of %d features from the fragment cache", ids.size() - misses.size(), ids.size()));
+		}
+		
+		StringBuilder builder = new StringBuilder();
+		for(int id : ids) {
+			String fragment = fragments.get(id);
+			if(fragment != null) {
+				if(builder.length() > 0) {
+					builder.append(',');
+				}
+				builder.append(fragment);
+			}
+		}
+		
+		return builder.toString();
+	}
+	
+	/**
+	 * Checks whether the geometries of a query are clipped. The clip parameter of the request takes precedence 
+	 * over query.clip.layers.
+	 */
+	boolean isClipped(int layerId, Boolean clip) {
+		if(clip != null) {
+			return clip;
+		}
+		
+		for(String clipLayer : clipLayers.split(",")) {
+			if(clipLayer.trim().equals(Integer.toString(layerId))) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Parses the objectIds parameter
+	 * 
+	 * @param objectIds - The comma separated OBJECTIDs
+	 * @return The distinct OBJECTIDs in the given order, or null if the parameter is empty
+	 */
+	List<Integer> getObjectIds(String objectIds) {
+		if("".equals(objectIds.trim())) {
+			return null;
+		}
+		
+		Set<Integer> ids = new LinkedHashSet<>();
+		for(String objectId : objectIds.split(",")) {
+			try {
+				ids.add(Integer.parseInt(objectId.trim()));
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid objectIds: " + objectIds);
+			}
+		}
+		
+		return new ArrayList<>(ids);
 	}
 	
 	////////////////////////////////////////////////////////////////////////////////////
@@ -80,7 +399,7 @@ public class QueryBuilder {
 	 * @param layerId - The layer id
 	 * @return The table name
 	 */
-	private String getDbUrl(int layerId) {
+	String getDbUrl(int layerId) {
 		switch(layerId) {
 		case 0:
 			return ARCHEOLOGISCH;
@@ -99,7 +418,7 @@ public class QueryBuilder {
 	 * @param layerId - The layer id
 	 * @return The names of the columns to filter
 	 */
-	private String[] getFieldsToGet(int layerId, String outFields) {
+	String[] getFieldsToGet(int layerId, String outFields) {
 		if("*".equals(outFields)) {
 			switch(layerId) {
 			case 0:
@@ -120,56 +439,16 @@ public class QueryBuilder {
 			}
 		}
 		builder.append(",geoJsons");
-		log.debug("outFields: " + builder.toString());
 		return builder.toString().split(",");
 	}
 	
-	/**
-	 * Gets the extent from the geometry attribute
-	 * 
-	 * @param geometry - The geometry attribute
-	 * @return Return the extent as a double[]
-	 */
-	private double[] getExtentFromGeometry(String geometry) {
-		if("".equals(geometry)) {
-			return new double[0];
-		}
-		
-		JsonParser parser = new JsonParser();
-		JsonElement element = parser.parse(geometry);
-		
-		double xmin = element.getAsJsonObject().get("xmin").getAsDouble();
-		double ymin = element.getAsJsonObject().get("ymin").getAsDouble();
-		double xmax = element.getAsJsonObject().get("xmax").getAsDouble();
-		double ymax = element.getAsJsonObject().get("ymax").getAsDouble();
-		
-		return new double[]{ xmin, ymin, xmax, ymax };
-	}
-	
-	/**
-	 * Gets the spatialRel
-	 * 
-	 * @return The spatialRel
-	 */
-	private JsonObject getSpatialReference() {
-		log.debug("Getting spatialReference...");
-		JsonObject obj = new JsonObject();
-		
-		obj.addProperty("wkid", 28992);
-		obj.addProperty("latestWkid", 28992);
-		
-		return obj;
-	}
-	
 	/**
 	 * Gets the column names to filter and displays them within the field array.
 	 * 
 	 * @param layerId - The layer id
 	 * @return The fields as a JsonArray
 	 */
-	private JsonArray getFields(int layerId) {
-		log.debug("Getting fields...");
-		
+	JsonArray getFields(int layerId) {
 		if(layerId == 0) {
 			return getArcheologischeFields();
 		}
@@ -390,101 +669,4 @@ public class QueryBuilder {
 		arr.add(wgr);
 		return arr;
 	}
-	
-	/**
-	 * Gets all features as an JsonArray for the given table
-	 * 
-	 * @param data - All the filtered data from the database
-	 * @param returnGeometry - A boolean whether the geometries should be returned
-	 * @param fields - The filtered column names
-	 * @return
-	 */
-	private JsonArray getFeatures(Map<String, List<String>> data, boolean returnGeometry, String[] fields) {
-		log.debug("Getting features...");
-		JsonArray arr = new JsonArray();
-		
-		int numObjects = (data.get("geoJsons")).size();
-		log.debug(String.format("%d results found...", numObjects));
-		
-		if(numObjects > 0) {
-			for(int i = 0; i < numObjects; i++) {
-				arr.add(getFeature(data, i, returnGeometry, fields));
-			}
-		}
-		
-		return arr;
-	}
-	
-	/**
-	 * Gets each feature as a JsonObject and appends it to the rest of the metadata
-	 * 
-	 * @param data - All filtered data from the database
-	 * @param index - This feature number
-	 * @param returnGeometry - Boolean whether the geometries should be returned
-	 * @param fields - The filtered column names
-	 * @return
-	 */
-	private JsonObject getFeature(Map<String, List<String>> data, int index, boolean returnGeometry, String[] fields) {
-		JsonObject obj = new JsonObject();
-		
-		obj.add("attributes", getAttributes(data, index, fields));
-		
-		List<String> geoJsons = data.get("geoJsons");
-		String esriJson = getEsriJson(geoJsons.get(index));
-		JsonParser parser = new JsonParser();
-		
-		if(returnGeometry) {
-			obj.add("geometry", parser.parse(esriJson));
-		}
-		
-		return obj;
-	}
-	
-	/**
-	 * Gets all attributes for the current feature
-	 * 
-	 * @param data - All filtered data from the database
-	 * @param index - The number of the current feature
-	 * @param fields - The filtered column names
-	 * @return
-	 */
-	private JsonObject getAttributes(Map<String, List<String>> data, int index, String[] fields) {
-		JsonObject obj = new JsonObject();
-		
-		for(int i = 0; i < fields.length; i++) {
-			String field = fields[i];
-			if("geoJsons".equalsIgnoreCase(field)) {
-				continue;
-			}
-			
-			String listObj = data.get(field).get(index);
-			obj.addProperty(field, listObj);
-		}
-		
-		return obj;
-	}
-	
-	/**
-	 * Converts the GeoJson String to an EsriJson String
-	 * 
-	 * @param geoJson - The GeoJson String
-	 * @return
-	 */
-	private String getEsriJson(String geoJson) {
-		Terraformer t = new Terraformer();
-		
-		t.setDecoder(new GeoJson());
-		EsriJson ej = new EsriJson();
-		ej.setSpatialReference(28992);
-		t.setEncoder(ej);
-		
-		String esriJson = "";
-		try {
-			esriJson = t.convert(geoJson);
-		} catch(TerraformerException e) {
-			log.error(e.getMessage(), e);
-		}
-		
-		return esriJson;
-	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,31 @@
+package nl.idgis.query;
+
+/**
+ * Thrown when a query is not admitted because the service or the layer is saturated.
+ */
+public class ServiceOverloadedException extends RuntimeException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final boolean tooManyRequests;
+	private final int retryAfter;
+	
+	/**
+	 * @param message - The error message for the client
+	 * @param tooManyRequests - True if only expensive queries are rejected, false if the whole service is saturated
+	 * @param retryAfter - The number of seconds after which the client may try again
+	 */
+	public ServiceOverloadedException(String message, boolean tooManyRequests, int retryAfter) {
+		super(message);
+		this.tooManyRequests = tooManyRequests;
+		this.retryAfter = retryAfter;
+	}
+	
+	public boolean isTooManyRequests() {
+		return tooManyRequests;
+	}
+	
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+}
@@ -0,0 +1,393 @@
+package nl.idgis.query;
+
+import java.util.List;
+
+import com.esri.terraformer.core.Terraformer;
+import com.esri.terraformer.core.TerraformerException;
+import com.esri.terraformer.formats.EsriJson;
+import com.esri.terraformer.formats.GeoJson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * The spatial filter of a query: the geometry, the spatial relationship the features must have with it and an
+ * optional distance around it. The filter is translated to a PostGIS predicate with a bounding box check in
+ * front, so the spatial index is used for every relationship. PostGIS prepares the filter geometry itself when
+ * it is compared with many features.
+ */
+public class SpatialFilter {
+	
+	private static final String INTERSECTS = "esriSpatialRelIntersects";
+	private static final String ENVELOPE_INTERSECTS = "esriSpatialRelEnvelopeIntersects";
+	private static final String INDEX_INTERSECTS = "esriSpatialRelIndexIntersects";
+	
+	private static final String POINT = "esriGeometryPoint";
+	private static final String ENVELOPE = "esriGeometryEnvelope";
+	
+	private static final double EARTH_RADIUS = 6378137;
+	private static final double METERS_PER_DEGREE = 111320;
+	
+	public static final SpatialFilter NONE = new SpatialFilter(null, null, SpatialReferences.LAYER_SRID, INTERSECTS, 0);
+	
+	private final double[] envelope;
+	private final String geoJson;
+	private final int inSR;
+	private final String spatialRel;
+	private final double distance;
+	
+	private SpatialFilter(double[] envelope, String geoJson, int inSR, String spatialRel, double distance) {
+		this.envelope = envelope;
+		this.geoJson = geoJson;
+		this.inSR = inSR;
+		this.spatialRel = spatialRel;
+		this.distance = distance;
+	}
+	
+	/**
+	 * Creates the filter from the query parameters.
+	 *
+	 * @param geometry - The geometry as json, or as x,y for a point or xmin,ymin,xmax,ymax for an envelope
+	 * @param geometryType - The type of the geometry, which must match the geometry
+	 * @param inSR - The spatial reference of the geometry. Defaults to the spatialReference of the geometry or 28992.
+	 * @param spatialRel - The spatial relationship with the geometry, e.g. esriSpatialRelIntersects
+	 * @param distance - The distance around the geometry, in units
+	 * @param units - The unit of the distance, e.g. esriSRUnit_Meter
+	 * @return The filter, or NONE without geometry
+	 * @throws IllegalArgumentException If a parameter is invalid
+	 */
+	public static SpatialFilter fromParameters(String geometry, String geometryType, String inSR, String spatialRel,
+			double distance, String units) {
+		if("".equals(geometry.trim())) {
+			return NONE;
+		}
+		
+		String member = getGeometryMember(geometryType);
+		String relation = getRelation(spatialRel);
+		double distanceInMeters = distance * getMetersPerUnit(units);
+		if(distanceInMeters < 0) {
+			throw new IllegalArgumentException("Invalid distance: " + distance);
+		}
+		
+		if(!geometry.trim().startsWith("{")) {
+			return fromSimpleSyntax(geometry, geometryType, inSR, relation, distanceInMeters);
+		}
+		
+		JsonObject obj;
+		try {
+			obj = new JsonParser().parse(geometry).getAsJsonObject();
+		} catch(JsonParseException | IllegalStateException e) {
+			throw new IllegalArgumentException("Invalid geometry: " + geometry);
+		}
+		if(!obj.has(member)) {
+			throw new IllegalArgumentException("Invalid geometry for " + geometryType + ": " + geometry);
+		}
+		int geometrySR = getInSR(inSR, obj);
+		
+		if(ENVELOPE.equals(geometryType)) {
+			double[] envelope = new double[]{ getCoordinate(obj, "xmin", geometry), getCoordinate(obj, "ymin", geometry),
+					getCoordinate(obj, "xmax", geometry), getCoordinate(obj, "ymax", geometry) };
+			return new SpatialFilter(envelope, null, geometrySR, relation, distanceInMeters);
+		}
+		
+		Terraformer t = new Terraformer();
+		t.setDecoder(new EsriJson());
+		t.setEncoder(new GeoJson());
+		try {
+			return new SpatialFilter(null, t.convert(geometry), geometrySR, relation, distanceInMeters);
+		} catch(TerraformerException e) {
+			throw new IllegalArgumentException("Invalid geometry: " + geometry);
+		}
+	}
+	
+	private static SpatialFilter fromSimpleSyntax(String geometry, String geometryType, String inSR, String relation, 
+			double distance) {
+		String[] values = geometry.split(",");
+		double[] coordinates = new double[values.length];
+		try {
+			for(int i = 0; i < values.length; i++) {
+				coordinates[i] = Double.parseDouble(values[i].trim());
+			}
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid geometry: " + geometry);
+		}
+		
+		int geometrySR = "".equals(inSR) ? SpatialReferences.LAYER_SRID : Integer.parseInt(inSR);
+		if(ENVELOPE.equals(geometryType) && coordinates.length == 4) {
+			return new SpatialFilter(coordinates, null, geometrySR, relation, distance);
+		}
+		if(POINT.equals(geometryType) && coordinates.length == 2) {
+			String point = "{\"type\":\"Point\",\"coordinates\":[" + coordinates[0] + "," + coordinates[1] + "]}";
+			return new SpatialFilter(null, point, geometrySR, relation, distance);
+		}
+		
+		throw new IllegalArgumentException("Invalid geometry for " + geometryType + ": " + geometry);
+	}
+	
+	private static double getCoordinate(JsonObject envelope, String member, String geometry) {
+		JsonElement value = envelope.get(member);
+		if(value == null || !value.isJsonPrimitive() || !value.getAsJsonPrimitive().isNumber()) {
+			throw new IllegalArgumentException("Invalid geometry, " + member + " is missing or not a number: " + geometry);
+		}
+		
+		return value.getAsDouble();
+	}
+	
+	/**
+	 * The inSR parameter takes precedence over the spatialReference of the geometry, without both the geometry is
+	 * in the spatial reference of the layer.
+	 */
+	private static int getInSR(String inSR, JsonObject geometry) {
+		if(!"".equals(inSR)) {
+			return Integer.parseInt(inSR);
+		}
+		if(geometry.has("spatialReference") && geometry.getAsJsonObject("spatialReference").has("wkid")) {
+			return geometry.getAsJsonObject("spatialReference").get("wkid").getAsInt();
+		}
+		
+		return SpatialReferences.LAYER_SRID;
+	}
+	
+	/**
+	 * @return The member that a json geometry of the type has
+	 */
+	private static String getGeometryMember(String geometryType) {
+		switch(geometryType) {
+		case POINT:
+			return "x";
+		case "esriGeometryMultipoint":
+			return "points";
+		case "esriGeometryPolyline":
+			return "paths";
+		case "esriGeometryPolygon":
+			return "rings";
+		case ENVELOPE:
+			return "xmin";
+		default:
+			throw new IllegalArgumentException("Unsupported geometryType: " + geometryType);
+		}
+	}
+	
+	private static String getRelation(String spatialRel) {
+		switch(spatialRel) {
+		case INTERSECTS:
+		case ENVELOPE_INTERSECTS:
+		case INDEX_INTERSECTS:
+		case "esriSpatialRelContains":
+		case "esriSpatialRelWithin":
+		case "esriSpatialRelTouches":
+		case "esriSpatialRelOverlaps":
+		case "esriSpatialRelCrosses":
+			return spatialRel;
+		default:
+			throw new IllegalArgumentException("Unsupported spatialRel: " + spatialRel);
+		}
+	}
+	
+	private static double getMetersPerUnit(String units) {
+		switch(units) {
+		case "esriSRUnit_Meter":
+			return 1;
+		case "esriSRUnit_Kilometer":
+			return 1000;
+		case "esriSRUnit_Foot":
+			return 0.3048;
+		case "esriSRUnit_StatuteMile":
+			return 1609.344;
+		case "esriSRUnit_NauticalMile":
+		case "esriSRUnit_USNauticalMile":
+			return 1852;
+		default:
+			throw new IllegalArgumentException("Unsupported units: " + units);
+		}
+	}
+	
+	public boolean isEmpty() {
+		return envelope == null && geoJson == null;
+	}
+	
+	/**
+	 * Estimates the area of the envelope in square meters, grown by the distance. Envelopes in Web Mercator and 
+	 * WGS 84 are scaled at their center latitude.
+	 *
+	 * @return The area, or infinity without filter, for other geometries than an envelope or other spatial references
+	 */
+	public double getEnvelopeArea() {
+		if(envelope == null) {
+			return Double.POSITIVE_INFINITY;
+		}
+		
+		double width = Math.abs(envelope[2] - envelope[0]);
+		double height = Math.abs(envelope[3] - envelope[1]);
+		switch(SpatialReferences.getSrid(inSR)) {
+		case SpatialReferences.LAYER_SRID:
+			break;
+		case 3857:
+			// Web Mercator stretches distances by 1 / cos(latitude)
+			double scale = Math.cos(Math.atan(Math.sinh((envelope[1] + envelope[3]) / 2 / EARTH_RADIUS)));
+			width *= scale;
+			height *= scale;
+			break;
+		case 4326:
+			width *= METERS_PER_DEGREE * Math.cos(Math.toRadians((envelope[1] + envelope[3]) / 2));
+			height *= METERS_PER_DEGREE;
+			break;
+		default:
+			return Double.POSITIVE_INFINITY;
+		}
+		
+		return (width + 2 * distance) * (height + 2 * distance);
+	}
+	
+	/**
+	 * Creates the predicate for the geometries in the column. The bounding box check comes first, so PostGIS
+	 * uses the spatial index for every relationship.
+	 *
+	 * @param column - The geometry column, in the srid of the layer
+	 * @param params - The bind values, to which the values of the filter are added
+	 * @return The predicate, or null without geometry
+	 */
+	public String getPredicate(String column, List<Object> params) {
+		if(isEmpty()) {
+			return null;
+		}
+		
+		if(ENVELOPE_INTERSECTS.equals(spatialRel) || INDEX_INTERSECTS.equals(spatialRel)) {
+			return column + " && " + getExpanded(params);
+		}
+		if(INTERSECTS.equals(spatialRel) && distance > 0) {
+			String predicate = column + " && " + getExpanded(params) + " AND ST_DWithin(" + column + ", " + getGeometry(params) + ", ?)";
+			params.add(distance);
+			return predicate;
+		}
+		
+		String predicate = column + " && " + getExpanded(params) + " AND " + getFunction() + "(" + column + ", ";
+		if(distance > 0) {
+			predicate += "ST_Buffer(" + getGeometry(params) + ", ?))";
+			params.add(distance);
+		} else {
+			predicate += getGeometry(params) + ")";
+		}
+		
+		return predicate;
+	}
+	
+	/**
+	 * Checks whether the geometries can be clipped to the filter, which is only done for an envelope that the 
+	 * geometries intersect.
+	 */
+	public boolean isClippable() {
+		return envelope != null && (INTERSECTS.equals(spatialRel) || ENVELOPE_INTERSECTS.equals(spatialRel) 
+				|| INDEX_INTERSECTS.equals(spatialRel));
+	}
+	
+	/**
+	 * Creates the box to clip the geometries to: the envelope grown by padding times its size on every side and 
+	 * by the distance.
+	 *
+	 * @param padding - The fraction of the width and height of the envelope to add on every side
+	 * @param params - The bind values, to which the values of the box are added
+	 * @return The box as a geometry in the srid of the layer, or null if the filter is not clippable
+	 */
+	public String getClipBox(double padding, List<Object> params) {
+		if(!isClippable()) {
+			return null;
+		}
+		
+		double dx = (envelope[2] - envelope[0]) * padding;
+		double dy = (envelope[3] - envelope[1]) * padding;
+		double[] padded = new double[]{ envelope[0] - dx, envelope[1] - dy, envelope[2] + dx, envelope[3] + dy };
+		String box = new SpatialFilter(padded, null, inSR, spatialRel, distance).getGeometry(params);
+		if(distance == 0) {
+			return box;
+		}
+		
+		params.add(distance);
+		return "ST_Expand(" + box + ", ?)";
+	}
+	
+	/**
+	 * Creates the predicate for the single parts of the geometries of the features that matched. Only the parts
+	 * that intersect are returned, for the other relationships all parts of the feature are returned.
+	 *
+	 * @return The predicate, or null if all parts are returned
+	 */
+	public String getPartPredicate(String column, List<Object> params) {
+		if(isEmpty() || !INTERSECTS.equals(spatialRel) && !ENVELOPE_INTERSECTS.equals(spatialRel)
+				&& !INDEX_INTERSECTS.equals(spatialRel)) {
+			return null;
+		}
+		
+		return getPredicate(column, params);
+	}
+	
+	private String getFunction() {
+		switch(spatialRel) {
+		case "esriSpatialRelContains":
+			return "ST_Contains";
+		case "esriSpatialRelWithin":
+			return "ST_Within";
+		case "esriSpatialRelTouches":
+			return "ST_Touches";
+		case "esriSpatialRelOverlaps":
+			return "ST_Overlaps";
+		case "esriSpatialRelCrosses":
+			return "ST_Crosses";
+		default:
+			return "ST_Intersects";
+		}
+	}
+	
+	/**
+	 * The geometry grown by the distance, for the bounding box check.
+	 */
+	private String getExpanded(List<Object> params) {
+		String geometry = getGeometry(params);
+		if(distance == 0) {
+			return geometry;
+		}
+		
+		params.add(distance);
+		return "ST_Expand(" + geometry + ", ?)";
+	}
+	
+	/**
+	 * Creates the geometry in the srid of the layer. A geometry in another spatial reference is transformed once,
+	 * so the geometries in the table can be compared with it using the spatial index.
+	 */
+	private String getGeometry(List<Object> params) {
+		int inSrid = SpatialReferences.getSrid(inSR);
+		String geometry;
+		if(envelope != null) {
+			geometry = "ST_MakeEnvelope(?, ?, ?, ?, ?)";
+			params.add(envelope[0]);
+			params.add(envelope[1]);
+			params.add(envelope[2]);
+			params.add(envelope[3]);
+			params.add(inSrid);
+		} else {
+			geometry = "ST_SetSRID(ST_GeomFromGeoJSON(?), ?)";
+			params.add(geoJson);
+			params.add(inSrid);
+		}
+		if(inSrid == SpatialReferences.LAYER_SRID) {
+			return geometry;
+		}
+		
+		return "ST_Transform(" + geometry + ", " + SpatialReferences.LAYER_SRID + ")";
+	}
+	
+	/**
+	 * The normalized filter, used in cache keys and ETags.
+	 */
+	@Override
+	public String toString() {
+		if(isEmpty()) {
+			return "";
+		}
+		
+		String geometry = envelope != null ? envelope[0] + "," + envelope[1] + "," + envelope[2] + "," + envelope[3] : geoJson;
+		return geometry + "|" + inSR + "|" + spatialRel + "|" + distance;
+	}
+}
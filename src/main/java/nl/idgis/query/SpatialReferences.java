@@ -0,0 +1,74 @@
+package nl.idgis.query;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Maps the well-known ids used by ArcGIS clients to PostGIS srids and creates the spatialReference objects for
+ * the query results.
+ */
+public class SpatialReferences {
+	
+	/**
+	 * The srid of the geometries in all layer tables (RD New)
+	 */
+	public static final int LAYER_SRID = 28992;
+	
+	/**
+	 * The spatialReference objects of the layer srid and the wkids that web clients request
+	 */
+	private static final Map<Integer, JsonObject> spatialReferences;
+	
+	static {
+		Map<Integer, JsonObject> common = new HashMap<>();
+		for(int wkid : new int[]{ LAYER_SRID, 4326, 3857, 102100, 102113, 900913 }) {
+			common.put(wkid, createSpatialReference(wkid));
+		}
+		spatialReferences = Collections.unmodifiableMap(common);
+	}
+	
+	private SpatialReferences() {}
+	
+	/**
+	 * Gets the srid that PostGIS uses for the given wkid. ArcGIS still uses the deprecated esri ids for
+	 * Web Mercator, these are mapped to 3857.
+	 *
+	 * @param wkid - The wkid from the request
+	 * @return The srid in spatial_ref_sys
+	 */
+	public static int getSrid(int wkid) {
+		switch(wkid) {
+		case 102100:
+		case 102113:
+		case 900913:
+			return 3857;
+		default:
+			return wkid;
+		}
+	}
+	
+	/**
+	 * Gets the spatialReference object for the given wkid. The objects of the common wkids are created once and 
+	 * shared, so they must not be modified. The wkid comes from the request, so the objects of other wkids are 
+	 * created for every call instead of being kept.
+	 *
+	 * @param wkid - The wkid from the request
+	 * @return The spatialReference
+	 */
+	public static JsonObject getSpatialReference(int wkid) {
+		JsonObject obj = spatialReferences.get(wkid);
+		return obj != null ? obj : createSpatialReference(wkid);
+	}
+	
+	private static JsonObject createSpatialReference(int wkid) {
+		JsonObject obj = new JsonObject();
+		
+		obj.addProperty("wkid", wkid);
+		obj.addProperty("latestWkid", getSrid(wkid));
+		
+		return obj;
+	}
+}
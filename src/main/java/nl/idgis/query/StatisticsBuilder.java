@@ -0,0 +1,256 @@
+package nl.idgis.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import nl.idgis.QueryHandler;
+import nl.idgis.QueryTrace;
+import nl.idgis.SlowQueryLog;
+
+/**
+ * Builds the json for queries with outStatistics or returnDistinctValues. The statistics are computed by PostGIS,
+ * so only the aggregated rows are sent to the client.
+ */
+@Component
+public class StatisticsBuilder {
+	
+	private static final String OUT_STATISTICS_ERROR_MESSAGE = "'outStatistics' parameter is invalid";
+	
+	@Autowired
+	private QueryBuilder queryBuilder;
+	
+	@Autowired
+	private QueryHandler handler;
+	
+	@Autowired
+	private SlowQueryLog slowQueryLog;
+	
+	/**
+	 * Builds the json for a statistics query. If returnDistinctValues is true and no outStatistics are given, the
+	 * distinct values of the outFields are returned.
+	 *
+	 * @param layerId - The layer id
+	 * @param filter - The spatial filter
+	 * @param outStatistics - The statistics as a json array
+	 * @param groupByFieldsForStatistics - Comma separated fields to group the statistics by
+	 * @param returnDistinctValues - Whether to return the distinct values of outFields
+	 * @throws IllegalArgumentException If a statistic or field is invalid for this layer
+	 * @return The statistics in the format of a query result
+	 */
+	public String getJsonStatisticsResult(int layerId, String where, SpatialFilter filter, String outStatistics,
+			String groupByFieldsForStatistics, boolean returnDistinctValues, String outFields) {
+		String dbUrl = queryBuilder.getDbUrl(layerId);
+		if(dbUrl == null) {
+			throw new IllegalArgumentException(String.format("Layer %d does not exist", layerId));
+		}
+		
+		List<String> layerFields = Arrays.asList(queryBuilder.getFieldsToGet(layerId, "*"));
+		List<OutStatistic> statistics = getOutStatistics(outStatistics, layerFields);
+		
+		String[] groupByFields;
+		if(statistics.isEmpty()) {
+			if(!returnDistinctValues) {
+				throw new IllegalArgumentException("outStatistics or returnDistinctValues is required");
+			}
+			groupByFields = getFields("*".equals(outFields) ? "" : outFields, layerFields);
+			if(groupByFields.length == 0) {
+				throw new IllegalArgumentException("returnDistinctValues requires outFields");
+			}
+		} else {
+			groupByFields = getFields(groupByFieldsForStatistics, layerFields);
+		}
+		
+		List<String> expressions = new ArrayList<>();
+		for(OutStatistic statistic : statistics) {
+			expressions.add(statistic.getSqlExpression());
+		}
+		
+		QueryTrace trace = slowQueryLog.newTrace(layerId);
+		List<Map<String, Object>> rows = handler.getStatisticsFromTable(dbUrl, layerFields.toArray(new String[0]), where,
+				filter, expressions, groupByFields, trace);
+		slowQueryLog.record(trace);
+		
+		return getStatisticsJson(layerId, statistics, groupByFields, rows);
+	}
+	
+	/**
+	 * Parses and validates the outStatistics parameter. The parameter must be a json array of objects, each with a
+	 * statisticType and onStatisticField.
+	 */
+	private List<OutStatistic> getOutStatistics(String outStatistics, List<String> layerFields) {
+		List<OutStatistic> statistics = new ArrayList<>();
+		if("".equals(outStatistics.trim())) {
+			return statistics;
+		}
+		
+		JsonElement json;
+		try {
+			json = new JsonParser().parse(outStatistics);
+		} catch(JsonParseException e) {
+			throw new IllegalArgumentException(OUT_STATISTICS_ERROR_MESSAGE);
+		}
+		if(!json.isJsonArray()) {
+			throw new IllegalArgumentException(OUT_STATISTICS_ERROR_MESSAGE);
+		}
+		
+		for(JsonElement element : json.getAsJsonArray()) {
+			if(!element.isJsonObject()) {
+				throw new IllegalArgumentException(OUT_STATISTICS_ERROR_MESSAGE);
+			}
+			JsonObject obj = element.getAsJsonObject();
+			String statisticType = getString(obj, "statisticType");
+			String onStatisticField = getString(obj, "onStatisticField");
+			if(statisticType == null || onStatisticField == null) {
+				throw new IllegalArgumentException(OUT_STATISTICS_ERROR_MESSAGE);
+			}
+			String outStatisticFieldName = obj.has("outStatisticFieldName")
+					? getString(obj, "outStatisticFieldName")
+					: statisticType.toUpperCase() + "_" + onStatisticField;
+			if(outStatisticFieldName == null) {
+				throw new IllegalArgumentException(OUT_STATISTICS_ERROR_MESSAGE);
+			}
+			
+			if(!layerFields.contains(onStatisticField) || "geoJsons".equals(onStatisticField)) {
+				throw new IllegalArgumentException(String.format("Invalid onStatisticField: %s", onStatisticField));
+			}
+			if(!outStatisticFieldName.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+				throw new IllegalArgumentException(String.format("Invalid outStatisticFieldName: %s", outStatisticFieldName));
+			}
+			
+			OutStatistic statistic = new OutStatistic(statisticType, onStatisticField, outStatisticFieldName);
+			if(statistic.getSqlExpression() == null) {
+				throw new IllegalArgumentException(String.format("Invalid statisticType: %s", statisticType));
+			}
+			statistics.add(statistic);
+		}
+		
+		return statistics;
+	}
+	
+	/**
+	 * @return The string value of a member, or null if the member is missing or not a string
+	 */
+	private static String getString(JsonObject obj, String member) {
+		JsonElement element = obj.get(member);
+		if(element == null || !element.isJsonPrimitive() || !element.getAsJsonPrimitive().isString()) {
+			return null;
+		}
+		
+		return element.getAsString();
+	}
+	
+	/**
+	 * Splits and validates a comma separated list of field names
+	 */
+	private String[] getFields(String fields, List<String> layerFields) {
+		if("".equals(fields.trim())) {
+			return new String[0];
+		}
+		
+		String[] retVal = fields.split(",");
+		for(int i = 0; i < retVal.length; i++) {
+			retVal[i] = retVal[i].trim();
+			if(!layerFields.contains(retVal[i]) || "geoJsons".equals(retVal[i])) {
+				throw new IllegalArgumentException(String.format("Invalid field: %s", retVal[i]));
+			}
+		}
+		
+		return retVal;
+	}
+	
+	private String getStatisticsJson(int layerId, List<OutStatistic> statistics, String[] groupByFields,
+			List<Map<String, Object>> rows) {
+		JsonObject obj = new JsonObject();
+		obj.addProperty("displayFieldName", "");
+		
+		JsonObject fieldAliases = new JsonObject();
+		JsonArray fields = new JsonArray();
+		JsonArray layerFields = queryBuilder.getFields(layerId);
+		for(String groupByField : groupByFields) {
+			fieldAliases.addProperty(groupByField, groupByField);
+			fields.add(getGroupByField(groupByField, layerFields));
+		}
+		for(OutStatistic statistic : statistics) {
+			String name = statistic.getOutStatisticFieldName();
+			fieldAliases.addProperty(name, name);
+			
+			JsonObject field = new JsonObject();
+			field.addProperty("name", name);
+			field.addProperty("type", statistic.getFieldType(getFieldType(statistic.getOnStatisticField(), layerFields)));
+			field.addProperty("alias", name);
+			fields.add(field);
+		}
+		obj.add("fieldAliases", fieldAliases);
+		obj.add("fields", fields);
+		
+		JsonArray features = new JsonArray();
+		for(Map<String, Object> row : rows) {
+			JsonObject attributes = new JsonObject();
+			for(Map.Entry<String, Object> column : row.entrySet()) {
+				Object value = column.getValue();
+				if(value == null) {
+					attributes.add(column.getKey(), JsonNull.INSTANCE);
+				} else if(value instanceof Number) {
+					attributes.addProperty(column.getKey(), (Number) value);
+				} else {
+					attributes.addProperty(column.getKey(), value.toString());
+				}
+			}
+			
+			JsonObject feature = new JsonObject();
+			feature.add("attributes", attributes);
+			features.add(feature);
+		}
+		obj.add("features", features);
+		
+		return obj.toString();
+	}
+	
+	/**
+	 * Gets the field definition of a group by field from the layer fields. OBJECTID is not in the field
+	 * definitions of all layers, so fields that are not found are added as a string.
+	 */
+	private JsonObject getGroupByField(String name, JsonArray layerFields) {
+		JsonObject retVal = new JsonObject();
+		retVal.addProperty("name", name);
+		retVal.addProperty("type", getFieldType(name, layerFields));
+		retVal.addProperty("alias", name);
+		
+		JsonObject field = getLayerField(name, layerFields);
+		if(field != null && field.has("length")) {
+			retVal.add("length", field.get("length"));
+		}
+		return retVal;
+	}
+	
+	/**
+	 * @return The esri field type of a layer field, or esriFieldTypeString if the field is not found
+	 */
+	private static String getFieldType(String name, JsonArray layerFields) {
+		JsonObject field = getLayerField(name, layerFields);
+		return field == null ? "esriFieldTypeString" : field.get("type").getAsString();
+	}
+	
+	private static JsonObject getLayerField(String name, JsonArray layerFields) {
+		for(JsonElement element : layerFields) {
+			JsonObject field = element.getAsJsonObject();
+			if(name.equals(field.get("name").getAsString())) {
+				return field;
+			}
+		}
+		
+		return null;
+	}
+}
@@ -0,0 +1,15 @@
+-- Notifies the service of changes of a layer table, see DataChangeListener. The channel is
+-- data_changed_<table name>, a publisher that recreates the table instead of changing it should send
+-- the notification itself after the commit: SELECT pg_notify('data_changed_<table name>', '');
+
+CREATE OR REPLACE FUNCTION staging_data.notify_data_changed() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('data_changed_' || TG_TABLE_NAME, TG_OP);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- For every layer table:
+CREATE TRIGGER data_changed
+	AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON staging_data."d43498d0-e418-44fe-b5ca-7635d7770e2a"
+	FOR EACH STATEMENT EXECUTE PROCEDURE staging_data.notify_data_changed();
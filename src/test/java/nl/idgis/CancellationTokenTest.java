@@ -0,0 +1,125 @@
+package nl.idgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * The statements are stand-ins that block in executeQuery until they are cancelled, like a query that runs in the
+ * database.
+ */
+public class CancellationTokenTest {
+	
+	@Test
+	public void testCancelRunningStatement() throws Exception {
+		CancellationToken cancellation = new CancellationToken(0);
+		RunningStatement running = new RunningStatement();
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> query = executor.submit(() -> {
+				cancellation.register(running.statement, "execute");
+				try {
+					running.statement.executeQuery("SELECT pg_sleep(60)");
+				} finally {
+					cancellation.unregister(running.statement);
+				}
+				return null;
+			});
+			
+			assertTrue(running.started.await(5, TimeUnit.SECONDS));
+			assertTrue(cancellation.cancel());
+			
+			try {
+				query.get(5, TimeUnit.SECONDS);
+				fail("Expected the statement to be cancelled");
+			} catch(ExecutionException e) {
+				assertEquals("canceling statement due to user request", e.getCause().getMessage());
+			}
+			assertEquals(1, running.cancelled.get());
+			assertEquals(0, cancellation.getStatementCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testUnregisteredStatementIsNotCancelled() throws Exception {
+		CancellationToken cancellation = new CancellationToken(0);
+		RunningStatement running = new RunningStatement();
+		
+		cancellation.register(running.statement, "execute");
+		assertEquals(1, cancellation.getStatementCount());
+		cancellation.unregister(running.statement);
+		assertEquals(0, cancellation.getStatementCount());
+		
+		assertTrue(cancellation.cancel());
+		assertEquals(0, running.cancelled.get());
+	}
+	
+	@Test
+	public void testCompletedRequestIsNotCancelled() throws Exception {
+		CancellationToken cancellation = new CancellationToken(0);
+		RunningStatement running = new RunningStatement();
+		
+		cancellation.register(running.statement, "execute");
+		cancellation.complete();
+		
+		assertFalse(cancellation.cancel());
+		assertFalse(cancellation.isCancelled());
+		assertEquals(0, running.cancelled.get());
+	}
+	
+	@Test(expected=QueryCancelledException.class)
+	public void testRegisterAfterCancel() throws Exception {
+		CancellationToken cancellation = new CancellationToken(0);
+		cancellation.cancel();
+		
+		cancellation.register(new RunningStatement().statement, "execute");
+	}
+	
+	private static class RunningStatement {
+		
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch released = new CountDownLatch(1);
+		private final AtomicInteger cancelled = new AtomicInteger();
+		
+		private final Statement statement = (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
+				new Class<?>[] {Statement.class}, (proxy, method, args) -> {
+					switch(method.getName()) {
+					case "executeQuery":
+						started.countDown();
+						if(!released.await(5, TimeUnit.SECONDS)) {
+							throw new IllegalStateException("The statement was not cancelled");
+						}
+						throw new SQLException("canceling statement due to user request", "57014");
+					case "cancel":
+						cancelled.incrementAndGet();
+						released.countDown();
+						return null;
+					case "isClosed":
+						return false;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return null;
+					}
+				});
+	}
+}
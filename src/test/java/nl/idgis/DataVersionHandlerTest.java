@@ -0,0 +1,151 @@
+package nl.idgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * The ttls are 0, so every call looks the version up unless the last lookup failed.
+ */
+public class DataVersionHandlerTest {
+	
+	private JdbcTemplate jdbcTemplate;
+	private ReplicaRouter replicaRouter;
+	private DataVersionHandler handler;
+	
+	@Before
+	public void setUp() {
+		jdbcTemplate = mock(JdbcTemplate.class);
+		replicaRouter = mock(ReplicaRouter.class);
+		when(replicaRouter.getPrimaryLsnFunction()).thenReturn("pg_current_wal_lsn");
+		
+		handler = new DataVersionHandler();
+		ReflectionTestUtils.setField(handler, "jdbcTemplate", jdbcTemplate);
+		ReflectionTestUtils.setField(handler, "replicaRouter", replicaRouter);
+		ReflectionTestUtils.setField(handler, "changeListener", mock(DataChangeListener.class));
+		ReflectionTestUtils.setField(handler, "staleIfError", 300000L);
+		ReflectionTestUtils.setField(handler, "retry", 60000L);
+	}
+	
+	@After
+	public void tearDown() {
+		handler.shutdown();
+	}
+	
+	@Test
+	public void testLsnIsOnlyRequiredForChangedVersion() {
+		givenVersion("1-1-10", "0/100");
+		assertEquals("1-1-10", handler.getDataVersion("layer0"));
+		verify(replicaRouter).requireLsn("0/100");
+		
+		// Other tables are written, so the position moves on while the version stays the same
+		givenVersion("1-1-10", "0/200");
+		assertEquals("1-1-10", handler.getDataVersion("layer0"));
+		assertEquals("1-1-10", handler.getDataVersion("layer0"));
+		verify(replicaRouter, never()).requireLsn("0/200");
+		
+		givenVersion("1-1-11", "0/300");
+		assertEquals("1-1-11", handler.getDataVersion("layer0"));
+		verify(replicaRouter).requireLsn("0/300");
+		verify(replicaRouter, times(2)).requireLsn(anyString());
+	}
+	
+	@Test
+	public void testFailedLookupIsNotRetriedAtOnce() {
+		givenVersion("1-1-10", "0/100");
+		assertEquals("1-1-10", handler.getDataVersion("layer0"));
+		
+		givenFailure();
+		// The known version is used for stale-if-error, without looking it up again for every request
+		for(int i = 0; i < 10; i++) {
+			assertEquals("1-1-10", handler.getDataVersion("layer0"));
+		}
+		assertNull(handler.getDataVersion("layer1"));
+		assertNull(handler.getDataVersion("layer1"));
+		verifyLookups(3);
+		
+		// Past the retry interval the version is looked up again
+		ReflectionTestUtils.setField(handler, "retry", 0L);
+		givenVersion("1-1-11", "0/200");
+		assertEquals("1-1-11", handler.getDataVersion("layer0"));
+		verifyLookups(4);
+	}
+	
+	@Test
+	public void testConcurrentLookupsAreShared() throws Exception {
+		CountDownLatch looking = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		givenLookup(() -> {
+			looking.countDown();
+			release.await(5, TimeUnit.SECONDS);
+			return new String[]{ "1-1-10", "0/100" };
+		});
+		
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			results.add(executor.submit(() -> handler.getDataVersion("layer0")));
+			assertTrue(looking.await(5, TimeUnit.SECONDS));
+			for(int i = 0; i < 3; i++) {
+				results.add(executor.submit(() -> handler.getDataVersion("layer0")));
+			}
+			// Gives the other requests time to find the lookup in progress
+			Thread.sleep(100);
+			release.countDown();
+			
+			for(Future<String> result : results) {
+				assertEquals("1-1-10", result.get(5, TimeUnit.SECONDS));
+			}
+			verifyLookups(1);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private void givenVersion(String value, String lsn) {
+		givenLookup(() -> new String[]{ value, lsn });
+	}
+	
+	private void givenFailure() {
+		givenLookup(() -> {
+			throw new CannotGetJdbcConnectionException("Could not get JDBC Connection", new SQLException("Connection refused"));
+		});
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void givenLookup(Callable<String[]> lookup) {
+		doAnswer(invocation -> lookup.call()).when(jdbcTemplate).queryForObject(anyString(), any(RowMapper.class), anyVararg());
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void verifyLookups(int count) {
+		verify(jdbcTemplate, times(count)).queryForObject(anyString(), any(RowMapper.class), anyVararg());
+	}
+}
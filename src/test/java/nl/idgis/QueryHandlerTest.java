@@ -0,0 +1,73 @@
+package nl.idgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import nl.idgis.query.Projection;
+import nl.idgis.query.SpatialFilter;
+
+public class QueryHandlerTest {
+	
+	private static final String[] FIELDS = {"OBJECTID", "NAME", "geoJsons"};
+	
+	private Connection conn;
+	private PreparedStatement statement;
+	private QueryHandler handler;
+	
+	@Before
+	public void setUp() throws SQLException {
+		conn = mock(Connection.class);
+		statement = mock(PreparedStatement.class);
+		when(conn.getAutoCommit()).thenReturn(true);
+		when(conn.prepareStatement(anyString(), anyInt(), anyInt())).thenReturn(statement);
+		
+		ReplicaRouter replicaRouter = mock(ReplicaRouter.class);
+		when(replicaRouter.getConnection(null)).thenReturn(conn);
+		
+		handler = new QueryHandler();
+		ReflectionTestUtils.setField(handler, "replicaRouter", replicaRouter);
+	}
+	
+	@Test
+	public void testExportFailureIsNotHiddenByRollback() throws SQLException {
+		CancellationToken cancellation = new CancellationToken(60000);
+		when(statement.executeQuery()).thenThrow(new SQLException("canceling statement due to statement timeout", "57014"));
+		doThrow(new SQLException("This connection has been closed.", "08003")).when(conn).rollback();
+		
+		try {
+			handler.streamDataFromTable("layer0", FIELDS, "", SpatialFilter.NONE, Projection.of(FIELDS, "*", true), 28992,
+					"ST_AsGeoJson", 1000, rs -> {}, new QueryTrace(0, false, cancellation));
+			fail("Expected the export to fail");
+		} catch(SQLException e) {
+			assertEquals("canceling statement due to statement timeout", e.getMessage());
+			assertEquals("This connection has been closed.", e.getSuppressed()[0].getMessage());
+		}
+		
+		// The statement got the deadline of the export and was unregistered when it was done
+		verify(statement).setQueryTimeout(60);
+		assertEquals(0, cancellation.getStatementCount());
+	}
+	
+	@Test(expected=QueryCancelledException.class)
+	public void testCancelledExportIsNotExecuted() throws SQLException {
+		CancellationToken cancellation = new CancellationToken(0);
+		cancellation.cancel();
+		
+		handler.streamDataFromTable("layer0", FIELDS, "", SpatialFilter.NONE, Projection.of(FIELDS, "*", true), 28992,
+				"ST_AsGeoJson", 1000, rs -> {}, new QueryTrace(0, false, cancellation));
+	}
+}
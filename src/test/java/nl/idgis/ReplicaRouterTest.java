@@ -0,0 +1,203 @@
+package nl.idgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * The replicas are stubs that answer the health check with the state the test sets. A connection tells from which
+ * datasource it came by its name.
+ */
+public class ReplicaRouterTest {
+	
+	private ReplicaRouter router;
+	
+	@After
+	public void tearDown() {
+		if(router != null) {
+			router.shutdown();
+		}
+	}
+	
+	@Test
+	public void testParseLsn() {
+		assertEquals(0L, ReplicaRouter.parseLsn(null));
+		assertEquals(0L, ReplicaRouter.parseLsn("0/0"));
+		assertEquals(0x16B374D848L, ReplicaRouter.parseLsn("16/B374D848"));
+		assertEquals(0xFFFFFFFFL, ReplicaRouter.parseLsn("0/FFFFFFFF"));
+	}
+	
+	@Test
+	public void testLsnOrder() {
+		// The part after the slash is not padded, so the positions can't be compared as text
+		assertTrue(ReplicaRouter.parseLsn("1/A0") < ReplicaRouter.parseLsn("1/100"));
+		assertTrue(ReplicaRouter.parseLsn("0/FFFFFFFF") < ReplicaRouter.parseLsn("1/0"));
+	}
+	
+	@Test
+	public void testLeastOutstanding() throws SQLException {
+		createRouter(false, new StubReplica("a"), new StubReplica("b"), new StubReplica("c"));
+		
+		Connection a = router.getConnection(null);
+		Connection b = router.getConnection(null);
+		Connection c = router.getConnection(null);
+		assertEquals("a", a.toString());
+		assertEquals("b", b.toString());
+		assertEquals("c", c.toString());
+		
+		a.close();
+		Connection next = router.getConnection(null);
+		assertEquals("a", next.toString());
+		
+		// A connection only counts once when it is closed twice
+		b.close();
+		b.close();
+		assertEquals("b", router.getConnection(null).toString());
+		assertEquals("a", router.getConnection(null).toString());
+	}
+	
+	@Test
+	public void testLagEjectionAndRecovery() throws SQLException {
+		StubReplica a = new StubReplica("a");
+		StubReplica b = new StubReplica("b");
+		createRouter(false, a, b);
+		
+		a.lag = 20000;
+		router.checkHealth();
+		assertEquals("b", router.getConnection(null).toString());
+		assertEquals("b", router.getConnection(null).toString());
+		
+		a.lag = 0;
+		router.checkHealth();
+		assertEquals("a", router.getConnection(null).toString());
+		
+		// Without WAL receiver the replica no longer receives changes, even though it has replayed everything
+		a.receiving = false;
+		router.checkHealth();
+		assertEquals("b", router.getConnection(null).toString());
+		
+		b.lag = 20000;
+		router.checkHealth();
+		assertEquals("primary", router.getConnection(null).toString());
+		
+		a.receiving = true;
+		b.lag = 0;
+		router.checkHealth();
+		assertEquals("a", router.getConnection(null).toString());
+	}
+	
+	@Test
+	public void testUnreachableReplicaIsEjected() throws SQLException {
+		StubReplica a = new StubReplica("a");
+		createRouter(false, a, new StubReplica("b"));
+		
+		when(a.dataSource.getConnection()).thenThrow(new SQLException("Connection refused"));
+		assertEquals("b", router.getConnection(null).toString());
+		assertEquals("b", router.getConnection(null).toString());
+	}
+	
+	@Test
+	public void testPinning() throws SQLException {
+		createRouter(true, new StubReplica("a"), new StubReplica("b"), new StubReplica("c"));
+		
+		Set<String> used = new HashSet<>();
+		for(int i = 0; i < 10; i++) {
+			String pinKey = "query" + i;
+			List<Connection> connections = new ArrayList<>();
+			connections.add(router.getConnection(pinKey));
+			// The pages of a query use the same replica, however busy it is
+			for(int page = 0; page < 3; page++) {
+				connections.add(router.getConnection(pinKey));
+				assertEquals(connections.get(0).toString(), connections.get(page + 1).toString());
+			}
+			used.add(connections.get(0).toString());
+		}
+		assertTrue(used.size() > 1);
+		
+		// Without pin key the least busy replica is used
+		Connection a = router.getConnection(null);
+		Connection b = router.getConnection(null);
+		assertNotEquals(a.toString(), b.toString());
+	}
+	
+	@Test
+	public void testRequiredLsn() throws SQLException {
+		StubReplica a = new StubReplica("a");
+		StubReplica b = new StubReplica("b");
+		a.replayLsn = "0/200";
+		b.replayLsn = "0/100";
+		createRouter(false, a, b);
+		
+		router.requireLsn("0/180");
+		assertEquals("a", router.getConnection(null).toString());
+		assertEquals("a", router.getConnection(null).toString());
+		
+		b.replayLsn = "0/180";
+		router.checkHealth();
+		assertEquals("b", router.getConnection(null).toString());
+		
+		router.requireLsn("0/300");
+		assertEquals("primary", router.getConnection(null).toString());
+	}
+	
+	private void createRouter(boolean pinPages, StubReplica... replicas) throws SQLException {
+		router = new ReplicaRouter("", "", "", 5000, 10000, pinPages);
+		StubReplica primary = new StubReplica("primary");
+		JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+		when(jdbcTemplate.getDataSource()).thenReturn(primary.dataSource);
+		ReflectionTestUtils.setField(router, "jdbcTemplate", jdbcTemplate);
+		
+		for(StubReplica replica : replicas) {
+			router.addReplica(replica.name, replica.dataSource);
+		}
+		router.checkHealth();
+	}
+	
+	private static class StubReplica {
+		
+		private final String name;
+		private final DataSource dataSource = mock(DataSource.class);
+		private volatile String replayLsn = "0/100";
+		private volatile boolean receiving = true;
+		private volatile double lag;
+		
+		StubReplica(String name) throws SQLException {
+			this.name = name;
+			
+			Connection conn = mock(Connection.class, name);
+			DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+			Statement stmt = mock(Statement.class);
+			ResultSet rs = mock(ResultSet.class);
+			when(dataSource.getConnection()).thenReturn(conn);
+			when(conn.getMetaData()).thenReturn(metaData);
+			when(conn.createStatement()).thenReturn(stmt);
+			when(metaData.getDatabaseMajorVersion()).thenReturn(10);
+			when(stmt.executeQuery(anyString())).thenReturn(rs);
+			when(rs.next()).thenReturn(true);
+			when(rs.getBoolean(1)).thenReturn(true);
+			when(rs.getString(2)).thenAnswer(invocation -> replayLsn);
+			when(rs.getBoolean(3)).thenAnswer(invocation -> receiving);
+			when(rs.getDouble(4)).thenAnswer(invocation -> lag);
+		}
+	}
+}
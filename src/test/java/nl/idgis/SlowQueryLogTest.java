@@ -0,0 +1,97 @@
+package nl.idgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Every query is slow and explained.
+ */
+public class SlowQueryLogTest {
+	
+	private static final String SQL = "SELECT \"OBJECTID\" FROM layer0 WHERE \"OBJECTID\" = ANY(?) AND \"NR\" > ?";
+	
+	private Connection conn;
+	private PreparedStatement statement;
+	private ReplicaRouter replicaRouter;
+	private SlowQueryLog slowQueryLog;
+	
+	@Before
+	public void setUp() throws SQLException {
+		conn = mock(Connection.class);
+		statement = mock(PreparedStatement.class);
+		ResultSet rs = mock(ResultSet.class);
+		when(conn.prepareStatement(anyString())).thenReturn(statement);
+		when(statement.getConnection()).thenReturn(conn);
+		when(statement.executeQuery()).thenReturn(rs);
+		when(rs.next()).thenReturn(true, false);
+		when(rs.getString(1)).thenReturn("Index Scan using layer0_pkey on layer0");
+		
+		replicaRouter = mock(ReplicaRouter.class);
+		when(replicaRouter.getConnection(null)).thenReturn(conn);
+	}
+	
+	@After
+	public void tearDown() {
+		slowQueryLog.shutdown();
+	}
+	
+	@Test
+	public void testExplainBindsArrays() throws SQLException {
+		Array ids = mock(Array.class);
+		Integer[] objectIds = new Integer[]{ 1, 2, 3 };
+		when(conn.createArrayOf("int4", objectIds)).thenReturn(ids);
+		
+		createSlowQueryLog(false, 10000);
+		QueryTrace trace = slowQueryLog.newTrace(0);
+		trace.setQuery(SQL, Arrays.asList(objectIds, 3));
+		trace.stage("execute");
+		slowQueryLog.record(trace);
+		
+		// The query is not run again, and the plan can't take longer than the timeout
+		verify(statement, timeout(5000)).executeQuery();
+		verify(conn).prepareStatement("EXPLAIN " + SQL);
+		verify(statement).setQueryTimeout(10);
+		verify(statement).setArray(1, ids);
+		verify(statement).setObject(2, 3);
+		
+		assertEquals("[1, 2, 3]", slowQueryLog.getSlowQueries().get(0).getAsJsonObject().getAsJsonArray("binds").get(0).getAsString());
+	}
+	
+	@Test
+	public void testExplainAnalyze() throws SQLException {
+		createSlowQueryLog(true, 30000);
+		
+		QueryTrace trace = slowQueryLog.newTrace(0);
+		trace.setQuery(SQL, Arrays.asList(new Integer[]{ 1 }, 3));
+		trace.stage("execute");
+		slowQueryLog.record(trace);
+		
+		verify(statement, timeout(5000)).executeQuery();
+		verify(conn).prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + SQL);
+		verify(statement).setQueryTimeout(30);
+		verify(statement).setArray(eq(1), any(Array.class));
+	}
+	
+	private void createSlowQueryLog(boolean explainAnalyze, long explainTimeout) {
+		slowQueryLog = new SlowQueryLog(50, 0, 0, explainAnalyze, explainTimeout, 0);
+		ReflectionTestUtils.setField(slowQueryLog, "replicaRouter", replicaRouter);
+	}
+}
@@ -0,0 +1,107 @@
+package nl.idgis.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * The other instance is a port on which nothing listens, so every request to it fails at once.
+ */
+public class PeerCacheTest {
+	
+	private static final String SELF = "http://127.0.0.1:1";
+	private static final String PEER = "http://127.0.0.1:2";
+	
+	private PeerCache peerCache;
+	private ExecutorService executor;
+	
+	@Before
+	public void setUp() {
+		peerCache = new PeerCache(SELF, SELF + "," + PEER, "secret", 500, 1 << 20, 5000);
+		ReflectionTestUtils.setField(peerCache, "localCache", new ResponseCache(1 << 20));
+		executor = Executors.newFixedThreadPool(4);
+	}
+	
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		peerCache.shutdown();
+	}
+	
+	@Test
+	public void testConcurrentMissesAreLoadedOnce() throws Exception {
+		String key = getKeyOwnedByPeer();
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		
+		List<Future<String>> results = new ArrayList<>();
+		results.add(executor.submit(() -> peerCache.get(key, () -> {
+			loads.incrementAndGet();
+			loading.countDown();
+			await(release);
+			return "value";
+		})));
+		assertTrue(loading.await(5, TimeUnit.SECONDS));
+		
+		for(int i = 0; i < 3; i++) {
+			results.add(executor.submit(() -> peerCache.get(key, () -> {
+				loads.incrementAndGet();
+				return "other";
+			})));
+		}
+		// Gives the other requests time to find the load in progress
+		Thread.sleep(100);
+		release.countDown();
+		
+		for(Future<String> result : results) {
+			assertEquals("value", result.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, loads.get());
+		
+		// Served from the near cache
+		assertEquals("value", peerCache.get(key, () -> "other"));
+	}
+	
+	@Test
+	public void testStoresAreBounded() throws Exception {
+		String key = getKeyOwnedByPeer();
+		for(int i = 0; i < 1000; i++) {
+			peerCache.get(key + i, () -> "value");
+		}
+		
+		// The stores that don't fit in the queue are dropped
+		ThreadPoolExecutor storeExecutor = (ThreadPoolExecutor) ReflectionTestUtils.getField(peerCache, "storeExecutor");
+		assertEquals(16, storeExecutor.getQueue().remainingCapacity() + storeExecutor.getQueue().size());
+	}
+	
+	private String getKeyOwnedByPeer() {
+		for(int i = 0; ; i++) {
+			if(!peerCache.isOwner("key" + i)) {
+				return "key" + i;
+			}
+		}
+	}
+	
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
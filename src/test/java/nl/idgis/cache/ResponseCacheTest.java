@@ -0,0 +1,80 @@
+package nl.idgis.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ResponseCacheTest {
+	
+	@Test
+	public void testEvictsBySize() {
+		// Every entry takes 2 * (1 + 9) = 20 bytes
+		ResponseCache cache = new ResponseCache(50);
+		cache.put("a", "123456789");
+		cache.put("b", "123456789");
+		assertEquals(40, cache.getSize());
+		
+		// a is used more recently than b, so b is evicted
+		cache.get("a");
+		cache.put("c", "123456789");
+		assertEquals("123456789", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("123456789", cache.get("c"));
+		assertEquals(40, cache.getSize());
+	}
+	
+	@Test
+	public void testLargeValueEvictsOthers() {
+		ResponseCache cache = new ResponseCache(50);
+		cache.put("a", "123456789");
+		cache.put("b", "12345678901234567890");
+		assertNull(cache.get("a"));
+		assertEquals(42, cache.getSize());
+	}
+	
+	@Test
+	public void testValueLargerThanCache() {
+		ResponseCache cache = new ResponseCache(50);
+		cache.put("a", "123456789");
+		cache.put("b", "123456789012345678901234567890");
+		assertNull(cache.get("b"));
+		assertEquals("123456789", cache.get("a"));
+		assertEquals(20, cache.getSize());
+	}
+	
+	@Test
+	public void testReplaceValue() {
+		ResponseCache cache = new ResponseCache(50);
+		cache.put("a", "123456789");
+		cache.put("a", "1");
+		assertEquals("1", cache.get("a"));
+		assertEquals(4, cache.getSize());
+	}
+	
+	@Test
+	public void testLoaderErrorIsNotCached() {
+		ResponseCache cache = new ResponseCache(50);
+		try {
+			cache.get("a", () -> {
+				throw new IllegalStateException("failed");
+			});
+		} catch(IllegalStateException e) {
+			assertEquals("failed", e.getMessage());
+		}
+		
+		assertEquals("1", cache.get("a", () -> "1"));
+	}
+	
+	@Test
+	public void testEntriesExpire() throws InterruptedException {
+		ResponseCache cache = new ResponseCache(50, 50);
+		cache.put("a", "123456789");
+		assertEquals("123456789", cache.get("a"));
+		
+		Thread.sleep(100);
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.getSize());
+		assertEquals("1", cache.get("a", () -> "1"));
+	}
+}
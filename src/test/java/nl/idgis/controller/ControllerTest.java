@@ -0,0 +1,340 @@
+package nl.idgis.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.forwardedUrl;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import nl.idgis.CancellationStats;
+import nl.idgis.CancellationToken;
+import nl.idgis.cache.PeerCache;
+import nl.idgis.cache.ResponseCache;
+import nl.idgis.query.AdmissionControl;
+import nl.idgis.query.ExportBuilder;
+import nl.idgis.query.ExportFormat;
+import nl.idgis.query.LayerDefinition;
+import nl.idgis.query.QueryBuilder;
+import nl.idgis.query.SpatialFilter;
+import nl.idgis.query.StatisticsBuilder;
+
+/**
+ * Dispatches requests through the DispatcherServlet, so the return values of the mappings are written by the 
+ * same handlers as in the service.
+ */
+public class ControllerTest {
+	
+	private static final String LAYERS_QUERY = "/rest/services/Testdata/FeatureServer/query";
+	private static final String LAYER_QUERY = "/rest/services/Testdata/FeatureServer/0/query";
+	private static final String LAYER_EXPORT = "/rest/services/Testdata/FeatureServer/0/export";
+	
+	private QueryBuilder builder;
+	private ExportBuilder exportBuilder;
+	private StatisticsBuilder statisticsBuilder;
+	private ExecutorService queryRequestExecutor;
+	private MockMvc mockMvc;
+	
+	@Before
+	public void setUp() {
+		builder = mock(QueryBuilder.class);
+		exportBuilder = mock(ExportBuilder.class);
+		statisticsBuilder = mock(StatisticsBuilder.class);
+		queryRequestExecutor = Executors.newSingleThreadExecutor();
+		
+		PeerCache peerCache = new PeerCache("", "", "", 500, 1 << 20, 5000);
+		ReflectionTestUtils.setField(peerCache, "localCache", new ResponseCache(1 << 20));
+		
+		Controller controller = new Controller();
+		ReflectionTestUtils.setField(controller, "builder", builder);
+		ReflectionTestUtils.setField(controller, "exportBuilder", exportBuilder);
+		ReflectionTestUtils.setField(controller, "statisticsBuilder", statisticsBuilder);
+		ReflectionTestUtils.setField(controller, "admissionControl", new AdmissionControl(20, 5, 8, 50, 200, 2000, 1e8, 2));
+		ReflectionTestUtils.setField(controller, "peerCache", peerCache);
+		ReflectionTestUtils.setField(controller, "cancellationStats", new CancellationStats());
+		ReflectionTestUtils.setField(controller, "queryRequestExecutor", queryRequestExecutor);
+		
+		mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+	}
+	
+	@After
+	public void tearDown() {
+		queryRequestExecutor.shutdownNow();
+	}
+	
+	@Test
+	public void testLayersQueryIsStreamed() throws Exception {
+		when(builder.getLayerDefinitions("")).thenReturn(Arrays.asList(
+				new LayerDefinition(0, "", "*"), 
+				new LayerDefinition(1, "", "*")));
+		when(builder.getETag(anyListOf(Integer.class), anyString())).thenReturn("\"1234\"");
+		when(builder.submitLayerQuery(any(LayerDefinition.class), anyBoolean(), anyString(), any(SpatialFilter.class), anyInt(), 
+				any(AdmissionControl.Permit.class), any(CancellationToken.class)))
+			.thenReturn(CompletableFuture.completedFuture("{\"id\":0}"))
+			.thenReturn(CompletableFuture.completedFuture("{\"id\":1}"));
+		
+		MvcResult result = mockMvc.perform(get(LAYERS_QUERY))
+			.andExpect(request().asyncStarted())
+			.andExpect(status().isOk())
+			.andExpect(header().string("ETag", "\"1234\""))
+			.andReturn();
+		
+		// The body is written on another thread, the async result is available when it is done
+		result.getAsyncResult();
+		assertEquals("{\"layers\":[{\"id\":0},{\"id\":1}]}", result.getResponse().getContentAsString());
+	}
+	
+	@Test
+	public void testLayersQueryCancelledWhenWritingStops() throws Exception {
+		when(builder.getLayerDefinitions("")).thenReturn(Arrays.asList(
+				new LayerDefinition(0, "", "*"), 
+				new LayerDefinition(1, "", "*")));
+		
+		// The result of the first layer can't be written, the second layer is still running
+		CompletableFuture<String> failed = new CompletableFuture<>();
+		failed.cancel(false);
+		CompletableFuture<String> running = new CompletableFuture<>();
+		List<CancellationToken> cancellations = new ArrayList<>();
+		when(builder.submitLayerQuery(any(LayerDefinition.class), anyBoolean(), anyString(), any(SpatialFilter.class), anyInt(), 
+				any(AdmissionControl.Permit.class), any(CancellationToken.class)))
+			.thenAnswer(invocation -> {
+				cancellations.add((CancellationToken) invocation.getArguments()[6]);
+				return cancellations.size() == 1 ? failed : running;
+			});
+		
+		MvcResult result = mockMvc.perform(get(LAYERS_QUERY))
+			.andExpect(request().asyncStarted())
+			.andReturn();
+		result.getAsyncResult(5000);
+		
+		assertEquals(2, cancellations.size());
+		assertTrue(cancellations.get(1).isCancelled());
+		assertTrue(running.isCancelled());
+	}
+	
+	@Test
+	public void testLayersQueryNotModified() throws Exception {
+		when(builder.getLayerDefinitions("")).thenReturn(Arrays.asList(new LayerDefinition(0, "", "*")));
+		when(builder.getETag(anyListOf(Integer.class), anyString())).thenReturn("\"1234\"");
+		
+		mockMvc.perform(get(LAYERS_QUERY).header("If-None-Match", "\"1234\""))
+			.andExpect(status().isNotModified())
+			.andExpect(content().string(""));
+	}
+	
+	@Test
+	public void testLayersQueryInvalidFormat() throws Exception {
+		MvcResult result = mockMvc.perform(get(LAYERS_QUERY).param("f", "html"))
+			.andExpect(status().isBadRequest())
+			.andReturn();
+		
+		result.getAsyncResult();
+		assertEquals("{\"error\":\"Invalid format type. Can only return JSON!\"}", result.getResponse().getContentAsString());
+	}
+	
+	@Test
+	public void testLayersQueryInvalidGeometry() throws Exception {
+		mockMvc.perform(get(LAYERS_QUERY).param("geometry", "not a geometry").param("geometryType", "esriGeometryUnknown"))
+			.andExpect(status().isBadRequest());
+	}
+	
+	@Test
+	public void testLayersQueryUnknownLayer() throws Exception {
+		when(builder.getLayerDefinitions("{\"7\":\"\"}")).thenThrow(new IllegalArgumentException("Layer 7 does not exist"));
+		
+		MvcResult result = mockMvc.perform(get(LAYERS_QUERY).param("layerDefs", "{\"7\":\"\"}"))
+			.andExpect(status().isBadRequest())
+			.andReturn();
+		
+		result.getAsyncResult();
+		assertEquals("{\"error\":\"Layer 7 does not exist\"}", result.getResponse().getContentAsString());
+	}
+	
+	@Test
+	public void testExport() throws Exception {
+		mockExport(ExportFormat.GEOJSON, "{\"type\":\"FeatureCollection\",\"features\":[]}");
+		
+		MvcResult result = mockMvc.perform(get(LAYER_EXPORT))
+			.andExpect(request().asyncStarted())
+			.andExpect(status().isOk())
+			.andExpect(header().string("Content-Type", "application/geo+json;charset=UTF-8"))
+			.andReturn();
+		
+		result.getAsyncResult();
+		assertEquals("{\"type\":\"FeatureCollection\",\"features\":[]}", result.getResponse().getContentAsString());
+	}
+	
+	@Test
+	public void testQueryWithExportFormat() throws Exception {
+		for(String formatType : new String[]{ "csv", "CSV", "geojson", "GeoJSON" }) {
+			mockMvc.perform(get(LAYER_QUERY).param("f", formatType))
+				.andExpect(request().asyncNotStarted())
+				.andExpect(forwardedUrl(LAYER_EXPORT));
+		}
+		mockMvc.perform(get(LAYER_QUERY).param("f", "JSON"))
+			.andExpect(request().asyncStarted());
+		
+		// The export chooses the format in the same way
+		mockExport(ExportFormat.CSV, "OBJECTID,WKT\r\n");
+		MvcResult result = mockMvc.perform(get(LAYER_EXPORT).param("f", "CSV"))
+			.andExpect(request().asyncStarted())
+			.andExpect(status().isOk())
+			.andExpect(header().string("Content-Type", "text/csv;charset=UTF-8"))
+			.andReturn();
+		
+		result.getAsyncResult();
+		assertEquals("OBJECTID,WKT\r\n", result.getResponse().getContentAsString());
+	}
+	
+	@Test
+	public void testQueryInvalidFormat() throws Exception {
+		MvcResult result = mockMvc.perform(get(LAYER_QUERY).param("f", "html"))
+			.andExpect(request().asyncStarted())
+			.andReturn();
+		
+		mockMvc.perform(asyncDispatch(result))
+			.andExpect(status().isBadRequest())
+			.andExpect(content().string("{\"error\":\"Invalid format type. Can only return JSON!\"}"));
+	}
+	
+	@Test
+	public void testQueryErrorIsNotCached() throws Exception {
+		when(builder.getETag(anyListOf(Integer.class), anyString())).thenReturn("\"1234\"");
+		when(builder.getJsonQueryResult(eq(0), anyString(), anyBoolean(), anyString(), any(SpatialFilter.class), anyString(), 
+				anyString(), anyInt(), anyInt(), anyInt(), any(Boolean.class), any(CancellationToken.class)))
+			.thenThrow(new BadSqlGrammarException("Query", "SELECT", new SQLException("syntax error", "42601")))
+			.thenReturn("{\"features\":[]}");
+		
+		MvcResult result = mockMvc.perform(get(LAYER_QUERY).param("where", "invalid"))
+			.andExpect(request().asyncStarted())
+			.andReturn();
+		result.getAsyncResult(5000);
+		mockMvc.perform(asyncDispatch(result))
+			.andExpect(status().isBadRequest())
+			.andExpect(content().string("{\"error\":\"Unable to complete the query\"}"));
+		
+		// The same query is loaded again instead of returning the error from the cache
+		result = mockMvc.perform(get(LAYER_QUERY).param("where", "invalid"))
+			.andExpect(request().asyncStarted())
+			.andReturn();
+		result.getAsyncResult(5000);
+		mockMvc.perform(asyncDispatch(result))
+			.andExpect(status().isOk())
+			.andExpect(content().string("{\"features\":[]}"));
+	}
+	
+	@Test
+	public void testQueryCancelledWhenClientGoesAway() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch stopped = new CountDownLatch(1);
+		AtomicReference<CancellationToken> cancellation = new AtomicReference<>();
+		when(builder.getETag(anyListOf(Integer.class), anyString())).thenReturn("\"1234\"");
+		when(builder.getJsonQueryResult(eq(0), anyString(), anyBoolean(), anyString(), any(SpatialFilter.class), anyString(), 
+				anyString(), anyInt(), anyInt(), anyInt(), any(Boolean.class), any(CancellationToken.class)))
+			.thenAnswer(invocation -> {
+				CancellationToken token = (CancellationToken) invocation.getArguments()[11];
+				cancellation.set(token);
+				started.countDown();
+				// Runs until the query is cancelled, like a statement in the database
+				try {
+					while(!token.isCancelled()) {
+						Thread.sleep(10);
+					}
+					token.check("execute");
+					return "{\"features\":[]}";
+				} finally {
+					stopped.countDown();
+				}
+			});
+		
+		MvcResult result = mockMvc.perform(get(LAYER_QUERY))
+			.andExpect(request().asyncStarted())
+			.andReturn();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		
+		// The container reports the broken connection to the listeners of the async context
+		AsyncContext asyncContext = result.getRequest().getAsyncContext();
+		for(AsyncListener listener : ((MockAsyncContext) asyncContext).getListeners()) {
+			listener.onError(new AsyncEvent(asyncContext, new IOException("Broken pipe")));
+		}
+		
+		assertTrue(cancellation.get().isCancelled());
+		assertTrue(stopped.await(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void testStatisticsErrors() throws Exception {
+		when(statisticsBuilder.getJsonStatisticsResult(eq(0), anyString(), any(SpatialFilter.class), anyString(), anyString(), 
+				anyBoolean(), anyString()))
+			.thenThrow(new IllegalArgumentException("'outStatistics' parameter is invalid"))
+			.thenThrow(new BadSqlGrammarException("Statistics", "SELECT", new SQLException("syntax error", "42601")))
+			.thenThrow(new DataAccessResourceFailureException("Connection refused"));
+		
+		assertQueryError(get(LAYER_QUERY).param("outStatistics", "["), 400, "{\"error\":\"'outStatistics' parameter is invalid\"}");
+		assertQueryError(get(LAYER_QUERY).param("outStatistics", "[]"), 400, "{\"error\":\"Unable to calculate the statistics\"}");
+		// An error of the database is not an error of the request
+		assertQueryError(get(LAYER_QUERY).param("outStatistics", "[ ]"), 500, "{\"error\":\"Unable to calculate the statistics\"}");
+	}
+	
+	private void assertQueryError(MockHttpServletRequestBuilder request, int status, String error) throws Exception {
+		MvcResult result = mockMvc.perform(request)
+			.andExpect(request().asyncStarted())
+			.andReturn();
+		result.getAsyncResult(5000);
+		mockMvc.perform(asyncDispatch(result))
+			.andExpect(status().is(status))
+			.andExpect(content().string(error));
+	}
+	
+	private void mockExport(ExportFormat format, String export) throws Exception {
+		when(builder.getETag(anyListOf(Integer.class), anyString())).thenReturn("\"1234\"");
+		doAnswer(invocation -> {
+			OutputStream out = (OutputStream) invocation.getArguments()[6];
+			out.write(export.getBytes(StandardCharsets.UTF_8));
+			return null;
+		}).when(exportBuilder).writeExport(eq(0), eq(format), anyString(), any(SpatialFilter.class), anyString(), anyInt(), 
+				any(OutputStream.class));
+	}
+}
@@ -0,0 +1,41 @@
+package nl.idgis.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdmissionControlTest {
+	
+	private final AdmissionControl admissionControl = new AdmissionControl(20, 5, 8, 50, 200, 2000, 1e8, 2);
+	
+	@Test
+	public void testIsExpensive() {
+		SpatialFilter city = getEnvelope("200000,470000,210000,480000", "");
+		SpatialFilter province = getEnvelope("180000,460000,270000,540000", "");
+		
+		assertTrue(admissionControl.isExpensive(true, 8000, SpatialFilter.NONE));
+		assertTrue(admissionControl.isExpensive(true, 8000, province));
+		assertFalse(admissionControl.isExpensive(true, 8000, city));
+		assertFalse(admissionControl.isExpensive(true, 1000, SpatialFilter.NONE));
+		assertFalse(admissionControl.isExpensive(false, 8000, SpatialFilter.NONE));
+	}
+	
+	@Test
+	public void testEnvelopeArea() {
+		assertEquals(1e8, getEnvelope("200000,470000,210000,480000", "").getEnvelopeArea(), 1);
+		assertEquals(Double.POSITIVE_INFINITY, SpatialFilter.NONE.getEnvelopeArea(), 0);
+		assertEquals(Double.POSITIVE_INFINITY, SpatialFilter.fromParameters("200000,470000", "esriGeometryPoint", "", 
+				"esriSpatialRelIntersects", 0, "esriSRUnit_Meter").getEnvelopeArea(), 0);
+		
+		// 10 km around 52.5 degrees north is about 16.4 km in Web Mercator
+		double y = 6378137 * Math.log(Math.tan(Math.PI / 4 + Math.toRadians(52.5) / 2));
+		SpatialFilter webMercator = getEnvelope("700000," + (y - 8212) + ",716424," + (y + 8212), "102100");
+		assertEquals(1e8, webMercator.getEnvelopeArea(), 1e6);
+	}
+	
+	private static SpatialFilter getEnvelope(String geometry, String inSR) {
+		return SpatialFilter.fromParameters(geometry, "esriGeometryEnvelope", inSR, "esriSpatialRelIntersects", 0, "esriSRUnit_Meter");
+	}
+}
@@ -0,0 +1,127 @@
+package nl.idgis.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import nl.idgis.CancellationToken;
+
+public class FeatureEncoderTest {
+	
+	private static final String[] LAYER_FIELDS = { "OBJECTID", "NAAM", "CODE" };
+	private static final int CHUNK_SIZE = 4;
+	
+	private ForkJoinPool pool;
+	private FeatureEncoder encoder;
+	private FeatureWriter writer;
+	
+	@Before
+	public void setUp() {
+		pool = new ForkJoinPool(4);
+		encoder = new FeatureEncoder(256);
+		ReflectionTestUtils.setField(encoder, "featureEncodingPool", pool);
+		ReflectionTestUtils.setField(encoder, "chunkSize", CHUNK_SIZE);
+		writer = encoder.getWriter(0, Projection.of(LAYER_FIELDS, "*", false), JsonArray::new);
+	}
+	
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+	
+	/**
+	 * Every result is encoded in chunks. The features must be in order and joined by exactly one comma, also 
+	 * across the boundaries of the chunks.
+	 */
+	@Test
+	public void testChunkBoundaries() {
+		ReflectionTestUtils.setField(encoder, "parallelThreshold", 0);
+		for(int numObjects : new int[]{ 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 2 * CHUNK_SIZE, 2 * CHUNK_SIZE + 1, 
+				7 * CHUNK_SIZE + 3 }) {
+			Map<String, List<String>> data = getData(numObjects);
+			String features = encoder.getFeatures(data, writer, 28992, CancellationToken.NONE);
+			
+			assertEquals("count " + numObjects, getExpected(data), features);
+			JsonArray array = new JsonParser().parse("[" + features + "]").getAsJsonArray();
+			assertEquals(numObjects, array.size());
+			for(int i = 0; i < numObjects; i++) {
+				assertEquals(i, array.get(i).getAsJsonObject().getAsJsonObject("attributes").get("OBJECTID").getAsInt());
+			}
+		}
+	}
+	
+	@Test
+	public void testParallelEqualsSequential() {
+		Map<String, List<String>> data = getData(10 * CHUNK_SIZE + 1);
+		
+		ReflectionTestUtils.setField(encoder, "parallelThreshold", Integer.MAX_VALUE);
+		String sequential = encoder.getFeatures(data, writer, 28992, CancellationToken.NONE);
+		ReflectionTestUtils.setField(encoder, "parallelThreshold", 0);
+		String parallel = encoder.getFeatures(data, writer, 28992, CancellationToken.NONE);
+		
+		assertEquals(sequential, parallel);
+		assertEquals(getExpected(data), parallel);
+	}
+	
+	/**
+	 * @return The features written one by one, joined by commas
+	 */
+	private String getExpected(Map<String, List<String>> data) {
+		FeatureWriter.Rows rows = writer.bind(data);
+		StringBuilder builder = new StringBuilder();
+		for(int i = 0; i < data.get("OBJECTID").size(); i++) {
+			if(i > 0) {
+				builder.append(',');
+			}
+			rows.write(builder, i, 28992);
+		}
+		
+		return builder.toString();
+	}
+	
+	private static Map<String, List<String>> getData(int numObjects) {
+		List<String> objectIds = new ArrayList<>();
+		List<String> names = new ArrayList<>();
+		List<String> codes = new ArrayList<>();
+		for(int i = 0; i < numObjects; i++) {
+			objectIds.add(String.valueOf(i));
+			names.add("feature, \"" + i + "\"");
+			codes.add(i % 3 == 0 ? null : "[" + i + "]");
+		}
+		
+		Map<String, List<String>> data = new HashMap<>();
+		data.put("OBJECTID", objectIds);
+		data.put("NAAM", names);
+		data.put("CODE", codes);
+		return data;
+	}
+	
+	@Test
+	public void testWritersAreBounded() {
+		FeatureEncoder encoder = new FeatureEncoder(2);
+		Projection all = Projection.of(LAYER_FIELDS, "*", true);
+		Projection naam = Projection.of(LAYER_FIELDS, "NAAM", true);
+		Projection code = Projection.of(LAYER_FIELDS, "CODE", true);
+		
+		FeatureWriter writer = encoder.getWriter(0, all, JsonArray::new);
+		assertSame(writer, encoder.getWriter(0, all, JsonArray::new));
+		
+		encoder.getWriter(0, naam, JsonArray::new);
+		encoder.getWriter(0, code, JsonArray::new);
+		assertNotSame(writer, encoder.getWriter(0, all, JsonArray::new));
+	}
+}
@@ -0,0 +1,181 @@
+package nl.idgis.query;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.esri.terraformer.core.Terraformer;
+import com.esri.terraformer.formats.EsriJson;
+import com.esri.terraformer.formats.GeoJson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class FeatureWriterTest {
+	
+	private static final String[] LAYER_FIELDS = { "OBJECTID", "NAAM", "AANTAL", "CODE" };
+	private static final JsonArray FIELD_DEFINITIONS = new JsonParser().parse("["
+			+ "{\"name\":\"NAAM\",\"type\":\"esriFieldTypeString\"},"
+			+ "{\"name\":\"AANTAL\",\"type\":\"esriFieldTypeInteger\"},"
+			+ "{\"name\":\"CODE\",\"type\":\"esriFieldTypeString\"}]").getAsJsonArray();
+	
+	private static final String POINT = "{\"type\":\"Point\",\"coordinates\":[155000.5,463000.25]}";
+	private static final String POLYGON = "{\"type\":\"Polygon\",\"coordinates\":[[[0,0],[10,0],[10,10],[0,10],[0,0]]]}";
+	
+	@Test
+	public void testIntegerAndStringColumns() {
+		Map<String, List<String>> data = new HashMap<>();
+		data.put("OBJECTID", Arrays.asList("1", "2"));
+		data.put("NAAM", Arrays.asList("Utrecht", "12"));
+		data.put("AANTAL", Arrays.asList("-42", "0"));
+		data.put("CODE", Arrays.asList("0344", "7"));
+		
+		// Numbers in a string column stay strings
+		assertEquals("{\"attributes\":{\"OBJECTID\":1,\"NAAM\":\"Utrecht\",\"AANTAL\":-42,\"CODE\":\"0344\"}}", write(data, 0, false));
+		assertEquals("{\"attributes\":{\"OBJECTID\":2,\"NAAM\":\"12\",\"AANTAL\":0,\"CODE\":\"7\"}}", write(data, 1, false));
+	}
+	
+	@Test
+	public void testIntegersThatAreNotNumbers() {
+		String[] values = { "007", "-0", "12a", "", "-", "1.5", "123456789012345678", "1234567890123456789" };
+		String[] expected = { "\"007\"", "-0", "\"12a\"", "\"\"", "\"-\"", "\"1.5\"", "123456789012345678", "\"1234567890123456789\"" };
+		
+		Map<String, List<String>> data = new HashMap<>();
+		data.put("OBJECTID", Arrays.asList(values));
+		for(int i = 0; i < values.length; i++) {
+			StringBuilder builder = new StringBuilder();
+			getWriter("OBJECTID", false).bind(data).write(builder, i, 28992);
+			assertEquals(values[i], "{\"attributes\":{\"OBJECTID\":" + expected[i] + "}}", builder.toString());
+		}
+	}
+	
+	@Test
+	public void testNulls() {
+		Map<String, List<String>> data = new HashMap<>();
+		data.put("OBJECTID", Arrays.asList("1"));
+		data.put("NAAM", Arrays.asList((String) null));
+		data.put("AANTAL", Arrays.asList((String) null));
+		data.put("CODE", Arrays.asList((String) null));
+		data.put(Projection.GEOMETRY_COLUMN, Arrays.asList((String) null));
+		
+		assertEquals("{\"attributes\":{\"OBJECTID\":1,\"NAAM\":null,\"AANTAL\":null,\"CODE\":null},\"geometry\":null}",
+				write(data, 0, true));
+	}
+	
+	@Test
+	public void testEscaping() {
+		Map<String, List<String>> data = new HashMap<>();
+		data.put("NAAM", Arrays.asList("\"quoted\" C:\\dir\\", "line\nbreak\r\ttab\b\f", "\u0000\u0001\u001f\u007f", "\u2028\u2029 \u00e9/\u20ac"));
+		
+		assertEquals("{\"attributes\":{\"NAAM\":\"\\\"quoted\\\" C:\\\\dir\\\\\"}}", write(data, "NAAM", 0));
+		assertEquals("{\"attributes\":{\"NAAM\":\"line\\nbreak\\r\\ttab\\b\\f\"}}", write(data, "NAAM", 1));
+		assertEquals("{\"attributes\":{\"NAAM\":\"\\u0000\\u0001\\u001f\u007f\"}}", write(data, "NAAM", 2));
+		assertEquals("{\"attributes\":{\"NAAM\":\"\\u2028\\u2029 \u00e9/\u20ac\"}}", write(data, "NAAM", 3));
+		
+		// Field names are escaped as well
+		FeatureWriter writer = new FeatureWriter(Projection.of(new String[]{ "A\"B" }, "*", false), new JsonArray());
+		Map<String, List<String>> quoted = new HashMap<>();
+		quoted.put("A\"B", Arrays.asList("x"));
+		StringBuilder builder = new StringBuilder();
+		writer.bind(quoted).write(builder, 0, 28992);
+		assertEquals("{\"attributes\":{\"A\\\"B\":\"x\"}}", builder.toString());
+	}
+	
+	@Test
+	public void testClipped() {
+		Map<String, List<String>> data = new HashMap<>();
+		// The same feature, once clipped
+		data.put("OBJECTID", Arrays.asList("1", "1"));
+		data.put(Projection.GEOMETRY_COLUMN, Arrays.asList(POINT, POINT));
+		data.put(Projection.CLIPPED_COLUMN, Arrays.asList("t", "f"));
+		
+		FeatureWriter writer = new FeatureWriter(Projection.of(LAYER_FIELDS, "OBJECTID", true).clipped(0.5), FIELD_DEFINITIONS);
+		FeatureWriter.Rows rows = writer.bind(data);
+		StringBuilder clipped = new StringBuilder();
+		rows.write(clipped, 0, 28992);
+		StringBuilder notClipped = new StringBuilder();
+		rows.write(notClipped, 1, 28992);
+		
+		assertEquals(notClipped.substring(0, notClipped.length() - 1) + ",\"clipped\":true}", clipped.toString());
+	}
+	
+	/**
+	 * The baseline built a JsonObject per feature and serialized it with Gson. The writer must write the same
+	 * bytes, except that the values of integer fields are numbers instead of strings.
+	 */
+	@Test
+	public void testSameAsBaselineEncoder() {
+		Map<String, List<String>> data = new HashMap<>();
+		data.put("OBJECTID", Arrays.asList("1", "2", "3", "4"));
+		data.put("NAAM", Arrays.asList("Utrecht", null, "\"a\\b\"\n\r\t\b\f\u0001\u2028", "Zeeuws-Vlaanderen \u00e9\u20ac"));
+		data.put("AANTAL", Arrays.asList("0", "-17", null, "123456789"));
+		data.put("CODE", Arrays.asList("0344", "", "x", null));
+		data.put(Projection.GEOMETRY_COLUMN, Arrays.asList(POINT, POLYGON, POINT, POLYGON));
+		
+		for(boolean returnGeometry : new boolean[]{ false, true }) {
+			for(String outFields : new String[]{ "*", "NAAM,OBJECTID", "AANTAL" }) {
+				FeatureWriter writer = new FeatureWriter(Projection.of(LAYER_FIELDS, outFields, returnGeometry), FIELD_DEFINITIONS);
+				FeatureWriter.Rows rows = writer.bind(data);
+				for(int i = 0; i < 4; i++) {
+					StringBuilder builder = new StringBuilder();
+					rows.write(builder, i, 28992);
+					assertEquals(encodeWithGson(data, i, Projection.of(LAYER_FIELDS, outFields, returnGeometry), 28992),
+							builder.toString());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The encoding of a feature before the writer, with the integer fields as numbers.
+	 */
+	private static String encodeWithGson(Map<String, List<String>> data, int index, Projection projection, int outSR) {
+		JsonObject attributes = new JsonObject();
+		for(String field : projection.getFields()) {
+			String value = data.get(field).get(index);
+			if(value != null && ("OBJECTID".equals(field) || "AANTAL".equals(field))) {
+				attributes.addProperty(field, Long.valueOf(value));
+			} else {
+				attributes.addProperty(field, value);
+			}
+		}
+		
+		JsonObject feature = new JsonObject();
+		feature.add("attributes", attributes);
+		if(projection.hasGeometry()) {
+			Terraformer t = new Terraformer();
+			t.setDecoder(new GeoJson());
+			EsriJson ej = new EsriJson();
+			ej.setSpatialReference(outSR);
+			t.setEncoder(ej);
+			try {
+				feature.add("geometry", new JsonParser().parse(t.convert(data.get(Projection.GEOMETRY_COLUMN).get(index))));
+			} catch(Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		return feature.toString();
+	}
+	
+	private static FeatureWriter getWriter(String outFields, boolean returnGeometry) {
+		return new FeatureWriter(Projection.of(LAYER_FIELDS, outFields, returnGeometry), FIELD_DEFINITIONS);
+	}
+	
+	private static String write(Map<String, List<String>> data, int index, boolean returnGeometry) {
+		StringBuilder builder = new StringBuilder();
+		getWriter("*", returnGeometry).bind(data).write(builder, index, 28992);
+		return builder.toString();
+	}
+	
+	private static String write(Map<String, List<String>> data, String outFields, int index) {
+		StringBuilder builder = new StringBuilder();
+		getWriter(outFields, false).bind(data).write(builder, index, 28992);
+		return builder.toString();
+	}
+}
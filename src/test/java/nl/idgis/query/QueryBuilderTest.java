@@ -0,0 +1,98 @@
+package nl.idgis.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import nl.idgis.CancellationToken;
+
+public class QueryBuilderTest {
+	
+	private final QueryBuilder builder = new QueryBuilder();
+	
+	@Test
+	public void testAllLayers() {
+		List<LayerDefinition> layerDefinitions = builder.getLayerDefinitions("");
+		
+		assertEquals(3, layerDefinitions.size());
+		assertEquals(2, layerDefinitions.get(2).getLayerId());
+	}
+	
+	@Test
+	public void testLayerDefinitions() {
+		List<LayerDefinition> layerDefinitions = builder.getLayerDefinitions("{\"1\":\"NR > 3\"}");
+		assertEquals(1, layerDefinitions.size());
+		assertEquals(1, layerDefinitions.get(0).getLayerId());
+		assertEquals("NR > 3", layerDefinitions.get(0).getWhere());
+		
+		layerDefinitions = builder.getLayerDefinitions("[{\"layerId\":0,\"outFields\":\"OBJECTID\"}]");
+		assertEquals(1, layerDefinitions.size());
+		assertEquals("", layerDefinitions.get(0).getWhere());
+		assertEquals("OBJECTID", layerDefinitions.get(0).getOutFields());
+	}
+	
+	@Test
+	public void testMalformedLayerDefinitions() {
+		assertInvalid("{\"0\":", "'layerDefs' parameter is invalid");
+		assertInvalid("\"0\"", "'layerDefs' parameter is invalid");
+		assertInvalid("{\"layer\":\"\"}", "'layerDefs' parameter is invalid");
+		assertInvalid("{\"0\":{}}", "'layerDefs' parameter is invalid");
+		assertInvalid("[{\"where\":\"\"}]", "'layerDefs' parameter is invalid");
+		assertInvalid("[{\"layerId\":\"zero\"}]", "'layerDefs' parameter is invalid");
+		assertInvalid("[0]", "'layerDefs' parameter is invalid");
+	}
+	
+	@Test
+	public void testUnknownLayer() {
+		assertInvalid("{\"7\":\"\"}", "Layer 7 does not exist");
+		assertInvalid("[{\"layerId\":0},{\"layerId\":-1}]", "Layer -1 does not exist");
+	}
+	
+	@Test
+	public void testCancelledLayerQueryReleasesPermit() throws Exception {
+		// A single permit, which is held by the queued layer query
+		AdmissionControl admissionControl = new AdmissionControl(1, 0, 1, 10, 100, 2000, 1e8, 2);
+		ExecutorService layerQueryExecutor = Executors.newSingleThreadExecutor();
+		ReflectionTestUtils.setField(builder, "layerQueryExecutor", layerQueryExecutor);
+		try {
+			CountDownLatch release = new CountDownLatch(1);
+			layerQueryExecutor.execute(() -> {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			
+			AdmissionControl.Permit permit = admissionControl.acquire(Collections.singletonList(0), false);
+			Future<String> result = builder.submitLayerQuery(new LayerDefinition(0, "", "*"), true, "", SpatialFilter.NONE, 28992, 
+					permit, new CancellationToken(0));
+			assertTrue(result.cancel(false));
+			release.countDown();
+			
+			admissionControl.acquire(Collections.singletonList(0), false).close();
+		} finally {
+			layerQueryExecutor.shutdownNow();
+		}
+	}
+	
+	private void assertInvalid(String layerDefs, String message) {
+		try {
+			builder.getLayerDefinitions(layerDefs);
+			fail("Expected the layerDefs to be invalid");
+		} catch(IllegalArgumentException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+}
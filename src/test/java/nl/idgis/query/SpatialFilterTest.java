@@ -0,0 +1,128 @@
+package nl.idgis.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SpatialFilterTest {
+	
+	private static final String ENVELOPE = "ST_MakeEnvelope(?, ?, ?, ?, ?)";
+	private static final List<Object> ENVELOPE_PARAMS = Arrays.asList(100.0, 200.0, 300.0, 400.0, 28992);
+	
+	private static final String[][] FUNCTIONS = {
+			{"esriSpatialRelContains", "ST_Contains"},
+			{"esriSpatialRelWithin", "ST_Within"},
+			{"esriSpatialRelTouches", "ST_Touches"},
+			{"esriSpatialRelOverlaps", "ST_Overlaps"},
+			{"esriSpatialRelCrosses", "ST_Crosses"}};
+	
+	@Test
+	public void testIntersects() {
+		assertPredicate("geom && " + ENVELOPE + " AND ST_Intersects(geom, " + ENVELOPE + ")",
+				params(ENVELOPE_PARAMS, ENVELOPE_PARAMS), getEnvelope("esriSpatialRelIntersects", 0));
+		
+		// The bounding box check is grown by the distance, the distance itself is checked with ST_DWithin
+		assertPredicate("geom && ST_Expand(" + ENVELOPE + ", ?) AND ST_DWithin(geom, " + ENVELOPE + ", ?)",
+				params(ENVELOPE_PARAMS, 10.0, ENVELOPE_PARAMS, 10.0), getEnvelope("esriSpatialRelIntersects", 10));
+	}
+	
+	@Test
+	public void testBoundingBoxOnly() {
+		for(String spatialRel : new String[]{"esriSpatialRelEnvelopeIntersects", "esriSpatialRelIndexIntersects"}) {
+			assertPredicate("geom && " + ENVELOPE, params(ENVELOPE_PARAMS), getEnvelope(spatialRel, 0));
+			assertPredicate("geom && ST_Expand(" + ENVELOPE + ", ?)", params(ENVELOPE_PARAMS, 10.0), getEnvelope(spatialRel, 10));
+		}
+	}
+	
+	@Test
+	public void testOtherRelationships() {
+		for(String[] function : FUNCTIONS) {
+			assertPredicate("geom && " + ENVELOPE + " AND " + function[1] + "(geom, " + ENVELOPE + ")",
+					params(ENVELOPE_PARAMS, ENVELOPE_PARAMS), getEnvelope(function[0], 0));
+			
+			// The relationship is checked with the geometry grown by the distance
+			assertPredicate("geom && ST_Expand(" + ENVELOPE + ", ?) AND " + function[1] + "(geom, ST_Buffer(" + ENVELOPE + ", ?))",
+					params(ENVELOPE_PARAMS, 10.0, ENVELOPE_PARAMS, 10.0), getEnvelope(function[0], 10));
+		}
+	}
+	
+	@Test
+	public void testTransformedPoint() {
+		SpatialFilter filter = SpatialFilter.fromParameters("{\"x\":5.1,\"y\":52.1,\"spatialReference\":{\"wkid\":4326}}",
+				"esriGeometryPoint", "", "esriSpatialRelIntersects", 1, "esriSRUnit_Kilometer");
+		String point = "ST_Transform(ST_SetSRID(ST_GeomFromGeoJSON(?), ?), 28992)";
+		String geoJson = "{\"type\":\"Point\",\"coordinates\":[5.1,52.1]}";
+		
+		assertPredicate("geom && ST_Expand(" + point + ", ?) AND ST_DWithin(geom, " + point + ", ?)",
+				params(geoJson, 4326, 1000.0, geoJson, 4326, 1000.0), filter);
+	}
+	
+	@Test
+	public void testNoFilter() {
+		List<Object> params = new ArrayList<>();
+		assertNull(SpatialFilter.NONE.getPredicate("geom", params));
+		assertEquals(0, params.size());
+	}
+	
+	@Test
+	public void testInvalidEnvelope() {
+		assertInvalid("{\"xmin\":100,\"ymin\":200,\"xmax\":300}", "esriGeometryEnvelope");
+		assertInvalid("{\"xmin\":100,\"ymin\":200,\"xmax\":300,\"ymax\":null}", "esriGeometryEnvelope");
+		assertInvalid("{\"xmin\":100,\"ymin\":200,\"xmax\":300,\"ymax\":\"top\"}", "esriGeometryEnvelope");
+		assertInvalid("{\"xmin\":100,\"ymin\":200,\"xmax\":300,\"ymax\":[400]}", "esriGeometryEnvelope");
+		assertInvalid("100,200,300", "esriGeometryEnvelope");
+	}
+	
+	@Test
+	public void testGeometryTypeMismatch() {
+		assertInvalid("100,200", "esriGeometryEnvelope");
+		assertInvalid("100,200,300,400", "esriGeometryPoint");
+		assertInvalid("100,200", "esriGeometryPolygon");
+		assertInvalid("{\"xmin\":100,\"ymin\":200,\"xmax\":300,\"ymax\":400}", "esriGeometryPolygon");
+		assertInvalid("{\"rings\":[[[100,200],[300,200],[300,400],[100,200]]]}", "esriGeometryEnvelope");
+		assertInvalid("{\"x\":100,\"y\":200}", "esriGeometryPolyline");
+		assertInvalid("{\"x\":100,\"y\":200}", "esriGeometryUnknown");
+	}
+	
+	private static SpatialFilter getEnvelope(String spatialRel, double distance) {
+		return SpatialFilter.fromParameters("{\"xmin\":100,\"ymin\":200,\"xmax\":300,\"ymax\":400}", "esriGeometryEnvelope", "",
+				spatialRel, distance, "esriSRUnit_Meter");
+	}
+	
+	private static void assertPredicate(String predicate, List<Object> expectedParams, SpatialFilter filter) {
+		List<Object> params = new ArrayList<>();
+		assertEquals(predicate, filter.getPredicate("geom", params));
+		assertEquals(expectedParams, params);
+	}
+	
+	private static void assertInvalid(String geometry, String geometryType) {
+		try {
+			SpatialFilter.fromParameters(geometry, geometryType, "", "esriSpatialRelIntersects", 0, "esriSRUnit_Meter");
+			fail("Expected the geometry to be invalid: " + geometry);
+		} catch(IllegalArgumentException e) {
+			// The request is answered with a 400
+		}
+	}
+	
+	/**
+	 * @return The bind values in order, lists are added in place
+	 */
+	private static List<Object> params(Object... values) {
+		List<Object> params = new ArrayList<>();
+		for(Object value : values) {
+			if(value instanceof List) {
+				params.addAll((List<?>) value);
+			} else {
+				params.add(value);
+			}
+		}
+		
+		return params;
+	}
+}
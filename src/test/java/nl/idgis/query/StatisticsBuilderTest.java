@@ -0,0 +1,110 @@
+package nl.idgis.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import nl.idgis.QueryHandler;
+import nl.idgis.SlowQueryLog;
+
+/**
+ * The outStatistics are validated before a query is run, so invalid statistics are an error of the request.
+ */
+public class StatisticsBuilderTest {
+	
+	private StatisticsBuilder statisticsBuilder;
+	
+	@Before
+	public void setUp() {
+		QueryBuilder queryBuilder = mock(QueryBuilder.class);
+		when(queryBuilder.getDbUrl(0)).thenReturn("layer0");
+		when(queryBuilder.getFieldsToGet(0, "*")).thenReturn(new String[] {"OBJECTID", "NAME", "NR", "geoJsons"});
+		when(queryBuilder.getFields(0)).thenReturn(new JsonParser().parse("[{\"name\":\"OBJECTID\",\"type\":\"esriFieldTypeOID\"},"
+				+ "{\"name\":\"NAME\",\"type\":\"esriFieldTypeString\",\"length\":80},"
+				+ "{\"name\":\"NR\",\"type\":\"esriFieldTypeInteger\"}]").getAsJsonArray());
+		
+		statisticsBuilder = new StatisticsBuilder();
+		ReflectionTestUtils.setField(statisticsBuilder, "queryBuilder", queryBuilder);
+		ReflectionTestUtils.setField(statisticsBuilder, "handler", mock(QueryHandler.class));
+		ReflectionTestUtils.setField(statisticsBuilder, "slowQueryLog", mock(SlowQueryLog.class));
+	}
+	
+	@Test
+	public void testMalformedJson() {
+		assertInvalid("[{\"statisticType\":\"count\"", "'outStatistics' parameter is invalid");
+	}
+	
+	@Test
+	public void testNotAnArray() {
+		assertInvalid("{\"statisticType\":\"count\",\"onStatisticField\":\"OBJECTID\"}", "'outStatistics' parameter is invalid");
+		assertInvalid("[\"count\"]", "'outStatistics' parameter is invalid");
+	}
+	
+	@Test
+	public void testMissingMembers() {
+		assertInvalid("[{\"statisticType\":\"count\"}]", "'outStatistics' parameter is invalid");
+		assertInvalid("[{\"onStatisticField\":\"OBJECTID\"}]", "'outStatistics' parameter is invalid");
+		assertInvalid("[{\"statisticType\":{},\"onStatisticField\":\"OBJECTID\"}]", "'outStatistics' parameter is invalid");
+	}
+	
+	@Test
+	public void testUnknownStatisticType() {
+		assertInvalid("[{\"statisticType\":\"median\",\"onStatisticField\":\"OBJECTID\"}]", "Invalid statisticType: median");
+	}
+	
+	@Test
+	public void testUnknownField() {
+		assertInvalid("[{\"statisticType\":\"count\",\"onStatisticField\":\"UNKNOWN\"}]", "Invalid onStatisticField: UNKNOWN");
+		assertInvalid("[{\"statisticType\":\"count\",\"onStatisticField\":\"geoJsons\"}]", "Invalid onStatisticField: geoJsons");
+	}
+	
+	@Test
+	public void testFieldTypes() {
+		String[][] statistics = {
+				{"count", "NAME", "esriFieldTypeInteger"},
+				{"min", "NR", "esriFieldTypeInteger"},
+				{"max", "NAME", "esriFieldTypeString"},
+				{"max", "OBJECTID", "esriFieldTypeInteger"},
+				{"sum", "NR", "esriFieldTypeDouble"},
+				{"avg", "NR", "esriFieldTypeDouble"},
+				{"stddev", "NR", "esriFieldTypeDouble"},
+				{"var", "NR", "esriFieldTypeDouble"}};
+		
+		JsonArray outStatistics = new JsonArray();
+		for(int i = 0; i < statistics.length; i++) {
+			JsonObject statistic = new JsonObject();
+			statistic.addProperty("statisticType", statistics[i][0]);
+			statistic.addProperty("onStatisticField", statistics[i][1]);
+			statistic.addProperty("outStatisticFieldName", "out" + i);
+			outStatistics.add(statistic);
+		}
+		
+		JsonArray fields = new JsonParser().parse(statisticsBuilder.getJsonStatisticsResult(0, "", SpatialFilter.NONE, 
+				outStatistics.toString(), "NAME", false, "*")).getAsJsonObject().getAsJsonArray("fields");
+		assertEquals("esriFieldTypeString", fields.get(0).getAsJsonObject().get("type").getAsString());
+		assertEquals(80, fields.get(0).getAsJsonObject().get("length").getAsInt());
+		for(int i = 0; i < statistics.length; i++) {
+			JsonObject field = fields.get(i + 1).getAsJsonObject();
+			assertEquals("out" + i, field.get("name").getAsString());
+			assertEquals(statistics[i][0] + " of " + statistics[i][1], statistics[i][2], field.get("type").getAsString());
+		}
+	}
+	
+	private void assertInvalid(String outStatistics, String message) {
+		try {
+			statisticsBuilder.getJsonStatisticsResult(0, "", SpatialFilter.NONE, outStatistics, "", false, "*");
+			fail("Expected the outStatistics to be invalid");
+		} catch(IllegalArgumentException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+}